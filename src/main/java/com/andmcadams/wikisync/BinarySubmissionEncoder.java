@@ -0,0 +1,158 @@
+package com.andmcadams.wikisync;
+
+import net.runelite.api.Skill;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+/**
+ * Encodes a submission in the compact binary format, which servers opt into by listing
+ * {@link #MANIFEST_FEATURE} in the manifest. Both sides already agree on the ordered varbit and varp lists of each
+ * manifest version, so fields are sent as slot indices instead of ids wrapped in JSON keys.
+ *
+ * <pre>
+ * "WS" magic, format version byte
+ * manifest version         zigzag varint
+ * username, profile        varint byte length + UTF-8
+ * varbits, varps           varint count, then per field: varint gap to the previous slot, zigzag varint value
+ * levels                   varint count, then per skill: varint byte length + UTF-8 name, zigzag varint level
+ * collection log flags     byte: 1 = item count follows, 2 = slots follow, 4 = new slots follow
+ * collection log count     zigzag varint
+ * collection log slots     varint byte length + the raw bitset bytes
+ * new collection log slots byte 0, varint count, then per slot: varint gap to the previous slot
+ *                          or byte 1, varint run count, then per run: varint gap to the previous run, varint length
+ * </pre>
+ * New slots are only sent to servers that also list {@link PlayerDataStore#INCREMENTAL_COLLECTION_LOG_FEATURE},
+ * in whichever of the two encodings is shorter.
+ */
+public class BinarySubmissionEncoder
+{
+	public static final String MANIFEST_FEATURE = "binary-submit-v1";
+
+	private static final Skill[] SKILLS = Skill.values();
+	private static final int FORMAT_VERSION = 1;
+	private static final int HAS_COLLECTION_LOG_COUNT = 1;
+	private static final int HAS_COLLECTION_LOG_SLOTS = 2;
+	private static final int HAS_NEW_COLLECTION_LOG_SLOTS = 4;
+	private static final int NEW_SLOTS_SPARSE = 0;
+	private static final int NEW_SLOTS_RUNS = 1;
+
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+	private BinarySubmissionEncoder()
+	{
+	}
+
+	public static byte[] encode(String username, String profile, PlayerDataStore delta)
+	{
+		BinarySubmissionEncoder encoder = new BinarySubmissionEncoder();
+		encoder.write(username, profile, delta);
+		return encoder.out.toByteArray();
+	}
+
+	private void write(String username, String profile, PlayerDataStore delta)
+	{
+		out.write('W');
+		out.write('S');
+		out.write(FORMAT_VERSION);
+		writeSignedVarint(delta.getIndex().getManifest().version);
+		writeString(username);
+		writeString(profile);
+		writeSlots(delta.varbKnown, delta.varb);
+		writeSlots(delta.varpKnown, delta.varp);
+
+		writeVarint(delta.levelKnown.cardinality());
+		for (int i = delta.levelKnown.nextSetBit(0); i >= 0; i = delta.levelKnown.nextSetBit(i + 1))
+		{
+			writeString(SKILLS[i].getName());
+			writeSignedVarint(delta.level[i]);
+		}
+
+		boolean hasSlots = delta.collectionLog != null && !delta.collectionLog.isEmpty();
+		int flags = (delta.collectionLogItemCount != null ? HAS_COLLECTION_LOG_COUNT : 0)
+			| (hasSlots ? (delta.collectionLogIncremental ? HAS_NEW_COLLECTION_LOG_SLOTS : HAS_COLLECTION_LOG_SLOTS) : 0);
+		out.write(flags);
+		if (delta.collectionLogItemCount != null)
+		{
+			writeSignedVarint(delta.collectionLogItemCount);
+		}
+		if (hasSlots && delta.collectionLogIncremental)
+		{
+			writeNewSlots(delta.collectionLog);
+		}
+		else if (hasSlots)
+		{
+			byte[] slots = delta.collectionLog.toByteArray();
+			writeVarint(slots.length);
+			out.write(slots, 0, slots.length);
+		}
+	}
+
+	private void writeNewSlots(BitSet slots)
+	{
+		BinarySubmissionEncoder sparse = new BinarySubmissionEncoder();
+		sparse.out.write(NEW_SLOTS_SPARSE);
+		sparse.writeVarint(slots.cardinality());
+		int previous = -1;
+		for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1))
+		{
+			sparse.writeVarint(slot - previous - 1);
+			previous = slot;
+		}
+
+		BinarySubmissionEncoder runs = new BinarySubmissionEncoder();
+		runs.out.write(NEW_SLOTS_RUNS);
+		int runCount = 0;
+		for (int start = slots.nextSetBit(0); start >= 0; start = slots.nextSetBit(slots.nextClearBit(start)))
+		{
+			runCount++;
+		}
+		runs.writeVarint(runCount);
+		int previousEnd = 0;
+		for (int start = slots.nextSetBit(0); start >= 0; start = slots.nextSetBit(slots.nextClearBit(start)))
+		{
+			int end = slots.nextClearBit(start);
+			runs.writeVarint(start - previousEnd);
+			runs.writeVarint(end - start);
+			previousEnd = end;
+		}
+
+		byte[] shorter = (runs.out.size() < sparse.out.size() ? runs : sparse).out.toByteArray();
+		out.write(shorter, 0, shorter.length);
+	}
+
+	private void writeSlots(BitSet known, int[] values)
+	{
+		writeVarint(known.cardinality());
+		int previous = -1;
+		for (int slot = known.nextSetBit(0); slot >= 0; slot = known.nextSetBit(slot + 1))
+		{
+			writeVarint(slot - previous - 1);
+			writeSignedVarint(values[slot]);
+			previous = slot;
+		}
+	}
+
+	private void writeString(String s)
+	{
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeVarint(bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private void writeSignedVarint(int value)
+	{
+		writeVarint((value << 1) ^ (value >> 31));
+	}
+
+	private void writeVarint(int value)
+	{
+		while ((value & ~0x7F) != 0)
+		{
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+}
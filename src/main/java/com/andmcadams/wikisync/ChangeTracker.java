@@ -0,0 +1,145 @@
+package com.andmcadams.wikisync;
+
+import lombok.Value;
+
+import java.util.BitSet;
+
+/**
+ * Keeps track of which parts of the player's data have changed since they were last captured, so that an upload
+ * cycle only has to read the fields that were actually touched. Changes are fed in from client thread events and
+ * drained by the upload task, so every method here is synchronized.
+ */
+public class ChangeTracker
+{
+	private VarReadPlan plan;
+
+	// Groups from the read plan, and the varbit and varp slots they cover
+	private BitSet dirtyGroups = new BitSet();
+	private BitSet dirtyVarbits = new BitSet();
+	private BitSet dirtyVarps = new BitSet();
+	private boolean levelsDirty;
+	private boolean collectionLogDirty;
+	// Everything needs to be read, e.g. after logging in or receiving a new manifest
+	private boolean allDirty = true;
+
+	@Value
+	public static class Changes
+	{
+		BitSet groups;
+		BitSet varbits;
+		BitSet varps;
+		boolean levels;
+		boolean collectionLog;
+
+		public static Changes all(VarReadPlan plan)
+		{
+			BitSet groups = new BitSet();
+			groups.set(0, plan.getGroupCount());
+			BitSet varbits = new BitSet();
+			varbits.set(0, plan.getIndex().getVarbitCount());
+			BitSet varps = new BitSet();
+			varps.set(0, plan.getIndex().getVarpCount());
+			return new Changes(groups, varbits, varps, true, true);
+		}
+
+		public static Changes collectionLogOnly()
+		{
+			return new Changes(new BitSet(), new BitSet(), new BitSet(), false, true);
+		}
+	}
+
+	public synchronized void setReadPlan(VarReadPlan plan)
+	{
+		this.plan = plan;
+		allDirty = true;
+	}
+
+	/**
+	 * Every varbit change also changes its varp, so tracking varps is enough to catch both.
+	 */
+	public synchronized void onVarpChanged(int varpId)
+	{
+		if (allDirty || plan == null)
+		{
+			return;
+		}
+		markGroupDirty(plan.getGroupForVarp(varpId));
+	}
+
+	private void markGroupDirty(int group)
+	{
+		if (group != -1 && !dirtyGroups.get(group))
+		{
+			dirtyGroups.set(group);
+			plan.markSlots(group, dirtyVarbits, dirtyVarps);
+		}
+	}
+
+	public synchronized void markLevelsDirty()
+	{
+		levelsDirty = true;
+	}
+
+	public synchronized void markCollectionLogDirty()
+	{
+		collectionLogDirty = true;
+	}
+
+	public synchronized void markAllDirty()
+	{
+		allDirty = true;
+	}
+
+	/**
+	 * Returns everything that changed since the last call and starts tracking from scratch.
+	 * Must not be called before a read plan has been set.
+	 */
+	public synchronized Changes drain()
+	{
+		Changes changes = allDirty
+			? Changes.all(plan)
+			: new Changes(dirtyGroups, dirtyVarbits, dirtyVarps, levelsDirty, collectionLogDirty);
+		dirtyGroups = new BitSet();
+		dirtyVarbits = new BitSet();
+		dirtyVarps = new BitSet();
+		levelsDirty = false;
+		collectionLogDirty = false;
+		allDirty = false;
+		return changes;
+	}
+
+	/**
+	 * Takes only the collection log out of what changed, leaving everything else for the next {@link #drain()}.
+	 * @return Whether the collection log changed since it was last drained.
+	 */
+	public synchronized boolean drainCollectionLog()
+	{
+		boolean changed = collectionLogDirty;
+		collectionLogDirty = false;
+		return changed;
+	}
+
+	/**
+	 * Marks the fields of a delta that was never acknowledged as dirty again, so they are picked up by the next
+	 * capture instead of being lost.
+	 */
+	public synchronized void restore(PlayerDataStore delta)
+	{
+		// The slots of a delta built against an older manifest mean nothing anymore, and a new manifest
+		// already marks everything as dirty
+		if (plan == null || delta.getIndex() != plan.getIndex())
+		{
+			return;
+		}
+		for (int slot = delta.varbKnown.nextSetBit(0); slot >= 0; slot = delta.varbKnown.nextSetBit(slot + 1))
+		{
+			markGroupDirty(plan.getGroupForVarbitSlot(slot));
+		}
+		for (int slot = delta.varpKnown.nextSetBit(0); slot >= 0; slot = delta.varpKnown.nextSetBit(slot + 1))
+		{
+			markGroupDirty(plan.getGroupForVarpSlot(slot));
+		}
+		levelsDirty |= !delta.levelKnown.isEmpty();
+		collectionLogDirty |= delta.hasCollectionLog();
+	}
+}
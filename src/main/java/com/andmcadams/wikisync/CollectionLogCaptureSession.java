@@ -0,0 +1,77 @@
+package com.andmcadams.wikisync;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * One pass over the collection log, started by the sync button. The search it opens enumerates every obtained item
+ * by running script 4100 once per item, all on the tick the search was opened. The session is complete once every
+ * item the game cache knows about has been seen, or once a tick has gone by without any more items, and only then is
+ * its bitset handed over for upload. Only used on the client thread.
+ */
+class CollectionLogCaptureSession
+{
+	// The search is opened on the click itself, so this only guards against it never being opened at all
+	private static final int TIMEOUT_TICKS = 5;
+
+	private final int startTick;
+	private final int expectedItems;
+	private BitSet slots = new BitSet();
+	private final Set<Integer> itemsSeen = new HashSet<>();
+	private int lastItemTick = -1;
+
+	/**
+	 * @param expectedItems The number of items in the collection log, or 0 if that is not known yet.
+	 */
+	CollectionLogCaptureSession(int startTick, int expectedItems)
+	{
+		this.startTick = startTick;
+		this.expectedItems = expectedItems;
+	}
+
+	/**
+	 * @param slot The item's bit in the collection log index, or -1 if the index does not know about it.
+	 */
+	void onItem(int itemId, int slot, int tick)
+	{
+		itemsSeen.add(itemId);
+		if (slot != -1)
+		{
+			slots.set(slot);
+		}
+		lastItemTick = tick;
+	}
+
+	boolean isComplete(int tick)
+	{
+		return (expectedItems > 0 && itemsSeen.size() >= expectedItems)
+			|| (lastItemTick != -1 && tick > lastItemTick);
+	}
+
+	/**
+	 * @return Whether the search never enumerated anything, e.g. because the collection log was closed right away.
+	 */
+	boolean isAbandoned(int tick)
+	{
+		return lastItemTick == -1 && tick - startTick > TIMEOUT_TICKS;
+	}
+
+	/**
+	 * Moves the slots seen so far over to a rebuilt index.
+	 */
+	void remap(CollectionLogIndex to, CollectionLogIndex from)
+	{
+		slots = to.remap(slots, from);
+	}
+
+	BitSet getSlots()
+	{
+		return slots;
+	}
+
+	int getItemsSeen()
+	{
+		return itemsSeen.size();
+	}
+}
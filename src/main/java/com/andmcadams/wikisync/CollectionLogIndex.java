@@ -0,0 +1,94 @@
+package com.andmcadams.wikisync;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Assigns every collection log item the bit that represents it in the uploaded bitset. Items are numbered in the
+ * manifest's order first, followed by the items that are only in the game cache sorted by id, so that the same
+ * manifest and cache always give the same layout. Indexes are immutable, a new manifest builds a new one and moves
+ * already captured bits over with {@link #remap}.
+ */
+public class CollectionLogIndex
+{
+	public static final CollectionLogIndex EMPTY = new CollectionLogIndex(new int[0]);
+
+	// The item id of every bit
+	private final int[] itemIds;
+	private final Map<Integer, Integer> bits = new HashMap<>();
+
+	private CollectionLogIndex(int[] itemIds)
+	{
+		this.itemIds = itemIds;
+		for (int bit = 0; bit < itemIds.length; bit++)
+		{
+			bits.put(itemIds[bit], bit);
+		}
+	}
+
+	public static CollectionLogIndex build(List<Integer> manifestItems, Collection<Integer> cacheItems)
+	{
+		Set<Integer> inManifest = new HashSet<>(manifestItems);
+		int[] missing = cacheItems.stream()
+			.filter(itemId -> !inManifest.contains(itemId))
+			.mapToInt(Integer::intValue)
+			.sorted()
+			.toArray();
+
+		int[] itemIds = new int[inManifest.size() + missing.length];
+		int n = 0;
+		Set<Integer> seen = new HashSet<>();
+		for (Integer itemId : manifestItems)
+		{
+			if (seen.add(itemId))
+			{
+				itemIds[n++] = itemId;
+			}
+		}
+		System.arraycopy(missing, 0, itemIds, n, missing.length);
+		return new CollectionLogIndex(itemIds);
+	}
+
+	public boolean isEmpty()
+	{
+		return itemIds.length == 0;
+	}
+
+	/**
+	 * @return The bit of the given item, or -1 if it is not in the collection log.
+	 */
+	public int getBit(int itemId)
+	{
+		Integer bit = bits.get(itemId);
+		return bit != null ? bit : -1;
+	}
+
+	public boolean sameLayoutAs(CollectionLogIndex other)
+	{
+		return Arrays.equals(itemIds, other.itemIds);
+	}
+
+	/**
+	 * Moves bits set against an older index over to the positions of this one. Items this index does not know
+	 * are dropped.
+	 */
+	public BitSet remap(BitSet set, CollectionLogIndex from)
+	{
+		BitSet out = new BitSet(itemIds.length);
+		for (int bit = set.nextSetBit(0); bit >= 0 && bit < from.itemIds.length; bit = set.nextSetBit(bit + 1))
+		{
+			int newBit = getBit(from.itemIds[bit]);
+			if (newBit != -1)
+			{
+				out.set(newBit);
+			}
+		}
+		return out;
+	}
+}
@@ -0,0 +1,106 @@
+package com.andmcadams.wikisync;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Singleton;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Keeps the item ids found by walking the collection log enums and structs, keyed by the game revision, so the walk
+ * only has to run again after the game has been updated. Updates that leave the revision alone are caught by the
+ * manifest's collections changing from the ones the items were walked for, or by the collection log listing an item
+ * the saved ids do not have.
+ */
+@Slf4j
+@Singleton
+public class CollectionLogItemCache
+{
+	private static final File FILE = new File(PlayerDataFileStore.DIRECTORY, "collectionlog.cache");
+	private static final int MAGIC = 0x5753434c;
+	private static final int FORMAT_VERSION = 3;
+
+	@Value
+	public static class Entry
+	{
+		int revision;
+		// The hash of the manifest collections the walk was done for
+		int collectionsHash;
+		Set<Integer> itemIds;
+	}
+
+	/**
+	 * @return The item ids saved for the given game revision, or null if there are none.
+	 */
+	public Entry load(int revision)
+	{
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(FILE.toPath()))))
+		{
+			if (in.readInt() != MAGIC)
+			{
+				throw new IOException("Unknown file format");
+			}
+			// Written by another version of the plugin, the walk simply runs again and replaces it
+			if (in.readInt() != FORMAT_VERSION || in.readInt() != revision)
+			{
+				return null;
+			}
+			int collectionsHash = in.readInt();
+			int count = in.readInt();
+			Set<Integer> itemIds = new HashSet<>(count * 2);
+			for (int i = 0; i < count; i++)
+			{
+				itemIds.add(in.readInt());
+			}
+			return new Entry(revision, collectionsHash, Collections.unmodifiableSet(itemIds));
+		}
+		catch (NoSuchFileException e)
+		{
+			return null;
+		}
+		catch (IOException | RuntimeException e)
+		{
+			log.debug("Failed to read {}: ", FILE, e);
+			return null;
+		}
+	}
+
+	public void save(Entry entry)
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(20 + entry.getItemIds().size() * 4);
+			try (DataOutputStream out = new DataOutputStream(bytes))
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				out.writeInt(entry.getRevision());
+				out.writeInt(entry.getCollectionsHash());
+				out.writeInt(entry.getItemIds().size());
+				for (int itemId : entry.getItemIds())
+				{
+					out.writeInt(itemId);
+				}
+			}
+			Files.createDirectories(FILE.getParentFile().toPath());
+			File tmp = new File(FILE.getParentFile(), FILE.getName() + ".tmp");
+			Files.write(tmp.toPath(), bytes.toByteArray());
+			Files.move(tmp.toPath(), FILE.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e)
+		{
+			log.debug("Failed to write {}: ", FILE, e);
+		}
+	}
+}
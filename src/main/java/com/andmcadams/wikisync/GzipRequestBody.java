@@ -0,0 +1,37 @@
+package com.andmcadams.wikisync;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+import java.io.IOException;
+
+/**
+ * Gzip compresses another request body as it is written. Requests using this need a
+ * {@code Content-Encoding: gzip} header.
+ */
+public class GzipRequestBody extends RequestBody
+{
+	private final RequestBody body;
+
+	public GzipRequestBody(RequestBody body)
+	{
+		this.body = body;
+	}
+
+	@Override
+	public MediaType contentType()
+	{
+		return body.contentType();
+	}
+
+	@Override
+	public void writeTo(BufferedSink sink) throws IOException
+	{
+		BufferedSink gzipSink = Okio.buffer(new GzipSink(sink));
+		body.writeTo(gzipSink);
+		gzipSink.close();
+	}
+}
@@ -0,0 +1,47 @@
+package com.andmcadams.wikisync;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A request body that serializes its value straight into the connection instead of building the whole JSON
+ * document as a String first. The value is serialized again if OkHttp has to retry the request.
+ */
+public class JsonRequestBody extends RequestBody
+{
+	private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+	private final Gson gson;
+	private final Object value;
+	private final Type type;
+
+	public JsonRequestBody(Gson gson, Object value)
+	{
+		this.gson = gson;
+		this.value = value;
+		this.type = value.getClass();
+	}
+
+	@Override
+	public MediaType contentType()
+	{
+		return JSON;
+	}
+
+	@Override
+	public void writeTo(BufferedSink sink) throws IOException
+	{
+		// Closing the writer would close the sink, which belongs to OkHttp
+		JsonWriter writer = gson.newJsonWriter(new OutputStreamWriter(sink.outputStream(), StandardCharsets.UTF_8));
+		gson.toJson(value, type, writer);
+		writer.flush();
+	}
+}
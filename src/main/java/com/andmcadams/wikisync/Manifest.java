@@ -7,8 +7,12 @@ import java.util.ArrayList;
 @Data
 public class Manifest
 {
-    final int version = -1;
-    final int[] varbits = new int[0];
-    final int[] varps = new int[0];
+    // Not final, otherwise javac inlines the -1 everywhere and never sees the version Gson sets
+    int version = -1;
+    // Not final so that a manifest delta can be applied to a copy
+    int[] varbits = new int[0];
+    int[] varps = new int[0];
     final ArrayList<Integer> collections = new ArrayList<>();
-}
\ No newline at end of file
+    // Optional capabilities the server supports, such as alternative submission formats
+    final ArrayList<String> features = new ArrayList<>();
+}
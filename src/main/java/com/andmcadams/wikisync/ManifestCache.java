@@ -0,0 +1,97 @@
+package com.andmcadams.wikisync;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Singleton;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Keeps a copy of the last manifest that was downloaded, together with the validators the server sent with it,
+ * so that syncing can start from it right away and the manifest only has to be downloaded again once it changes.
+ */
+@Slf4j
+@Singleton
+public class ManifestCache
+{
+	private static final File FILE = new File(PlayerDataFileStore.DIRECTORY, "manifest.cache");
+	private static final int MAGIC = 0x57534d43;
+
+	@Value
+	public static class Entry
+	{
+		// Either may be null if the server did not send it
+		String etag;
+		String lastModified;
+		byte[] body;
+	}
+
+	/**
+	 * @return The cached manifest, or null if there is none.
+	 */
+	public Entry load()
+	{
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(FILE.toPath()))))
+		{
+			if (in.readInt() != MAGIC)
+			{
+				throw new IOException("Unknown file format");
+			}
+			String etag = in.readBoolean() ? in.readUTF() : null;
+			String lastModified = in.readBoolean() ? in.readUTF() : null;
+			byte[] body = new byte[in.readInt()];
+			in.readFully(body);
+			return new Entry(etag, lastModified, body);
+		}
+		catch (NoSuchFileException e)
+		{
+			return null;
+		}
+		catch (IOException | RuntimeException e)
+		{
+			log.debug("Failed to read {}: ", FILE, e);
+			return null;
+		}
+	}
+
+	public void save(Entry entry)
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(entry.getBody().length + 128);
+			try (DataOutputStream out = new DataOutputStream(bytes))
+			{
+				out.writeInt(MAGIC);
+				writeOptional(out, entry.getEtag());
+				writeOptional(out, entry.getLastModified());
+				out.writeInt(entry.getBody().length);
+				out.write(entry.getBody());
+			}
+			Files.createDirectories(FILE.getParentFile().toPath());
+			File tmp = new File(FILE.getParentFile(), FILE.getName() + ".tmp");
+			Files.write(tmp.toPath(), bytes.toByteArray());
+			Files.move(tmp.toPath(), FILE.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e)
+		{
+			log.debug("Failed to write {}: ", FILE, e);
+		}
+	}
+
+	private static void writeOptional(DataOutputStream out, String value) throws IOException
+	{
+		out.writeBoolean(value != null);
+		if (value != null)
+		{
+			out.writeUTF(value);
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package com.andmcadams.wikisync;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * What changed between two versions of the manifest. Added varbits and varps are appended, so everything that was
+ * already in the manifest keeps its place unless something before it was removed. The collection log bitset is
+ * positional, so collections are only ever appended to.
+ */
+@Data
+public class ManifestDelta
+{
+    int baseVersion = -1;
+    int version = -1;
+    final Changes varbits = new Changes();
+    final Changes varps = new Changes();
+    final ArrayList<Integer> collections = new ArrayList<>();
+    // Small enough to always be sent in full
+    final ArrayList<String> features = new ArrayList<>();
+
+    @Data
+    public static class Changes
+    {
+        final int[] added = new int[0];
+        final int[] removed = new int[0];
+
+        boolean isEmpty()
+        {
+            return added.length == 0 && removed.length == 0;
+        }
+
+        int[] applyTo(int[] base)
+        {
+            Set<Integer> removedIds = new HashSet<>();
+            for (int id : removed)
+            {
+                removedIds.add(id);
+            }
+            Set<Integer> present = new HashSet<>();
+            int[] out = new int[base.length + added.length];
+            int n = 0;
+            for (int id : base)
+            {
+                if (!removedIds.contains(id) && present.add(id))
+                {
+                    out[n++] = id;
+                }
+            }
+            for (int id : added)
+            {
+                if (present.add(id))
+                {
+                    out[n++] = id;
+                }
+            }
+            return Arrays.copyOf(out, n);
+        }
+    }
+
+    /**
+     * @return Whether the delta leaves its base manifest as it was. Features are always sent in full, so they are
+     * compared against the base.
+     */
+    public boolean isEmpty(Manifest base)
+    {
+        return baseVersion == version && varbits.isEmpty() && varps.isEmpty() && collections.isEmpty()
+            && new HashSet<>(features).equals(new HashSet<>(base.features));
+    }
+
+    /**
+     * @return A new manifest with the changes applied. The base manifest is left untouched.
+     */
+    public Manifest applyTo(Manifest base)
+    {
+        Manifest out = new Manifest();
+        out.setVersion(version);
+        out.setVarbits(varbits.applyTo(base.varbits));
+        out.setVarps(varps.applyTo(base.varps));
+        out.collections.addAll(base.collections);
+        Set<Integer> present = new HashSet<>(base.collections);
+        for (Integer itemId : collections)
+        {
+            if (present.add(itemId))
+            {
+                out.collections.add(itemId);
+            }
+        }
+        out.features.addAll(features);
+        return out;
+    }
+}
@@ -0,0 +1,86 @@
+package com.andmcadams.wikisync;
+
+import lombok.Getter;
+
+import java.util.Arrays;
+
+/**
+ * Assigns every varbit and varp in a {@link Manifest} a dense slot, which is its position in the manifest's list.
+ * Player data is stored in plain arrays indexed by these slots instead of maps keyed by id.
+ */
+public class ManifestIndex
+{
+	@Getter
+	private final Manifest manifest;
+
+	// Lookup tables from id to slot, -1 for ids that are not in the manifest
+	private final int[] varbitSlots;
+	private final int[] varpSlots;
+
+	public ManifestIndex(Manifest manifest)
+	{
+		this.manifest = manifest;
+		this.varbitSlots = buildSlots(manifest.varbits);
+		this.varpSlots = buildSlots(manifest.varps);
+	}
+
+	private static int[] buildSlots(int[] ids)
+	{
+		int maxId = -1;
+		for (int id : ids)
+		{
+			maxId = Math.max(maxId, id);
+		}
+		int[] slots = new int[maxId + 1];
+		Arrays.fill(slots, -1);
+		for (int slot = 0; slot < ids.length; slot++)
+		{
+			if (ids[slot] >= 0)
+			{
+				slots[ids[slot]] = slot;
+			}
+		}
+		return slots;
+	}
+
+	private static int lookup(int[] slots, int id)
+	{
+		return id >= 0 && id < slots.length ? slots[id] : -1;
+	}
+
+	public int getVarbitCount()
+	{
+		return manifest.varbits.length;
+	}
+
+	public int getVarpCount()
+	{
+		return manifest.varps.length;
+	}
+
+	public int getVarbitId(int slot)
+	{
+		return manifest.varbits[slot];
+	}
+
+	public int getVarpId(int slot)
+	{
+		return manifest.varps[slot];
+	}
+
+	/**
+	 * @return The slot of the given varbit, or -1 if the manifest does not contain it.
+	 */
+	public int getVarbitSlot(int varbitId)
+	{
+		return lookup(varbitSlots, varbitId);
+	}
+
+	/**
+	 * @return The slot of the given varp, or -1 if the manifest does not contain it.
+	 */
+	public int getVarpSlot(int varpId)
+	{
+		return lookup(varpSlots, varpId);
+	}
+}
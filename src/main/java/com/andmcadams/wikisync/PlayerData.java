@@ -4,6 +4,7 @@ import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -16,16 +17,62 @@ public class PlayerData
     Map<Integer, Integer> varp = new HashMap<>();
     Map<String, Integer> level = new HashMap<>();
     Integer collectionLogItemCount = null;
+    // The whole collection log bitset, Base64 encoded
     String collectionLogSlots = "";
+    // Only the slots that were set since the last upload, as a list of slots or as [start, length] pairs,
+    // whichever is shorter. Only sent to servers that list the incremental collection log feature
+    int[] collectionLogNewSlots = null;
+    int[] collectionLogNewRuns = null;
 
     public boolean isEmpty()
     {
-        return varb.isEmpty() && varp.isEmpty() && level.isEmpty() && collectionLogSlots.isEmpty() && collectionLogItemCount == null;
+        return varb.isEmpty() && varp.isEmpty() && level.isEmpty() && (collectionLogSlots == null || collectionLogSlots.isEmpty())
+            && collectionLogNewSlots == null && collectionLogNewRuns == null && collectionLogItemCount == null;
+    }
+
+    /**
+     * Roughly how many bytes this serializes to, used to decide whether compressing it is worthwhile.
+     */
+    public int estimateSize()
+    {
+        return 16 * (varb.size() + varp.size() + level.size())
+            + (collectionLogSlots != null ? collectionLogSlots.length() : 0)
+            + 6 * (collectionLogNewSlots != null ? collectionLogNewSlots.length : 0)
+            + 6 * (collectionLogNewRuns != null ? collectionLogNewRuns.length : 0);
     }
 
     public void clearCollectionLog()
     {
         collectionLogSlots = "";
+        collectionLogNewSlots = null;
+        collectionLogNewRuns = null;
         collectionLogItemCount = null;
     }
+
+    /**
+     * Sends only the given slots instead of the whole collection log.
+     */
+    public void setNewCollectionLogSlots(BitSet slots)
+    {
+        collectionLogSlots = null;
+        int runs = 0;
+        for (int start = slots.nextSetBit(0); start >= 0; start = slots.nextSetBit(slots.nextClearBit(start)))
+        {
+            runs++;
+        }
+        if (2 * runs < slots.cardinality())
+        {
+            collectionLogNewRuns = new int[2 * runs];
+            int i = 0;
+            for (int start = slots.nextSetBit(0); start >= 0; start = slots.nextSetBit(slots.nextClearBit(start)))
+            {
+                collectionLogNewRuns[i++] = start;
+                collectionLogNewRuns[i++] = slots.nextClearBit(start) - start;
+            }
+        }
+        else
+        {
+            collectionLogNewSlots = slots.stream().toArray();
+        }
+    }
 }
\ No newline at end of file
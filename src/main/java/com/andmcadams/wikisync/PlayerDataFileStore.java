@@ -0,0 +1,246 @@
+package com.andmcadams.wikisync;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import net.runelite.api.Skill;
+import net.runelite.client.RuneLite;
+import net.runelite.client.config.RuneScapeProfileType;
+
+import javax.inject.Singleton;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Saves player data per profile under the RuneLite directory, so that what the server has acknowledged survives
+ * client restarts. Files are tagged with the version of the manifest they were built against and are ignored once
+ * the manifest moves on.
+ */
+@Slf4j
+@Singleton
+public class PlayerDataFileStore
+{
+	// What the server has acknowledged for the profile
+	public static final String ACKNOWLEDGED = "ack";
+	// What is still waiting to be acknowledged
+	public static final String OUTBOX = "outbox";
+
+	static final File DIRECTORY = new File(RuneLite.RUNELITE_DIR, "wikisync");
+	private static final int MAGIC = 0x57534144;
+	private static final int FORMAT_VERSION = 1;
+
+	/**
+	 * @return The data saved for the profile, or null if there is none that matches the given manifest.
+	 */
+	public PlayerDataStore load(PlayerProfile profile, String kind, ManifestIndex index)
+	{
+		File file = fileFor(profile, kind);
+		try
+		{
+			Saved saved = decode(Files.readAllBytes(file.toPath()), index);
+			if (!saved.getProfile().equals(profile))
+			{
+				return null;
+			}
+			if (saved.getManifestVersion() != index.getManifest().version)
+			{
+				log.debug("Ignoring {} since it does not match manifest version {}", file, index.getManifest().version);
+				return null;
+			}
+			return saved.getStore();
+		}
+		catch (NoSuchFileException e)
+		{
+			return null;
+		}
+		catch (IOException | RuntimeException e)
+		{
+			log.debug("Failed to read {}: ", file, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Reads every saved file of the given kind, whatever manifest it was built against. Fields that are not in the
+	 * given manifest are dropped.
+	 */
+	public List<Saved> loadAll(String kind, ManifestIndex index)
+	{
+		List<Saved> out = new ArrayList<>();
+		File[] files = DIRECTORY.listFiles((dir, name) -> name.endsWith("." + kind));
+		if (files == null)
+		{
+			return out;
+		}
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		for (File file : files)
+		{
+			try
+			{
+				out.add(decode(Files.readAllBytes(file.toPath()), index));
+			}
+			catch (IOException | RuntimeException e)
+			{
+				log.debug("Failed to read {}: ", file, e);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Writes the data for the profile, replacing whatever was saved before. This does file IO, so it should not
+	 * be called on the client thread.
+	 */
+	public void save(PlayerProfile profile, String kind, PlayerDataStore store)
+	{
+		File file = fileFor(profile, kind);
+		try
+		{
+			Files.createDirectories(DIRECTORY.toPath());
+			File tmp = new File(DIRECTORY, file.getName() + ".tmp");
+			Files.write(tmp.toPath(), encode(profile, store));
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e)
+		{
+			log.debug("Failed to write {}: ", file, e);
+		}
+	}
+
+	public void delete(PlayerProfile profile, String kind)
+	{
+		File file = fileFor(profile, kind);
+		try
+		{
+			Files.deleteIfExists(file.toPath());
+		}
+		catch (IOException e)
+		{
+			log.debug("Failed to delete {}: ", file, e);
+		}
+	}
+
+	@Value
+	public static class Saved
+	{
+		PlayerProfile profile;
+		int manifestVersion;
+		PlayerDataStore store;
+	}
+
+	private static File fileFor(PlayerProfile profile, String kind)
+	{
+		String name = profile.getUsername().toLowerCase().replaceAll("[^a-z0-9_-]", "_");
+		return new File(DIRECTORY, name + "-" + profile.getProfileType().name().toLowerCase() + "." + kind);
+	}
+
+	static byte[] encode(PlayerProfile profile, PlayerDataStore store) throws IOException
+	{
+		ManifestIndex index = store.getIndex();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes)))
+		{
+			out.writeInt(MAGIC);
+			out.writeByte(FORMAT_VERSION);
+			out.writeUTF(profile.getUsername());
+			out.writeUTF(profile.getProfileType().name());
+			out.writeInt(index.getManifest().version);
+
+			// Fields are saved by id rather than slot, so the file does not depend on the manifest's order
+			out.writeInt(store.varbKnown.cardinality());
+			for (int slot = store.varbKnown.nextSetBit(0); slot >= 0; slot = store.varbKnown.nextSetBit(slot + 1))
+			{
+				out.writeInt(index.getVarbitId(slot));
+				out.writeInt(store.varb[slot]);
+			}
+			out.writeInt(store.varpKnown.cardinality());
+			for (int slot = store.varpKnown.nextSetBit(0); slot >= 0; slot = store.varpKnown.nextSetBit(slot + 1))
+			{
+				out.writeInt(index.getVarpId(slot));
+				out.writeInt(store.varp[slot]);
+			}
+			out.writeInt(store.levelKnown.cardinality());
+			for (int i = store.levelKnown.nextSetBit(0); i >= 0; i = store.levelKnown.nextSetBit(i + 1))
+			{
+				out.writeUTF(Skill.values()[i].name());
+				out.writeInt(store.level[i]);
+			}
+
+			out.writeBoolean(store.collectionLogItemCount != null);
+			if (store.collectionLogItemCount != null)
+			{
+				out.writeInt(store.collectionLogItemCount);
+			}
+			byte[] slots = store.collectionLog != null ? store.collectionLog.toByteArray() : new byte[0];
+			out.writeInt(slots.length);
+			out.write(slots);
+			out.writeBoolean(store.collectionLogIncremental);
+		}
+		return bytes.toByteArray();
+	}
+
+	static Saved decode(byte[] data, ManifestIndex index) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(data))))
+		{
+			if (in.readInt() != MAGIC || in.readByte() != FORMAT_VERSION)
+			{
+				throw new IOException("Unknown file format");
+			}
+			PlayerProfile profile = new PlayerProfile(in.readUTF(), RuneScapeProfileType.valueOf(in.readUTF()));
+			int manifestVersion = in.readInt();
+
+			PlayerDataStore store = new PlayerDataStore(index);
+			for (int i = in.readInt(); i > 0; i--)
+			{
+				int slot = index.getVarbitSlot(in.readInt());
+				int value = in.readInt();
+				if (slot != -1)
+				{
+					store.setVarbit(slot, value);
+				}
+			}
+			for (int i = in.readInt(); i > 0; i--)
+			{
+				int slot = index.getVarpSlot(in.readInt());
+				int value = in.readInt();
+				if (slot != -1)
+				{
+					store.setVarp(slot, value);
+				}
+			}
+			for (int i = in.readInt(); i > 0; i--)
+			{
+				String skill = in.readUTF();
+				int value = in.readInt();
+				for (Skill s : Skill.values())
+				{
+					if (s.name().equals(skill))
+					{
+						store.setLevel(s, value);
+					}
+				}
+			}
+
+			Integer itemCount = in.readBoolean() ? in.readInt() : null;
+			byte[] slots = new byte[in.readInt()];
+			in.readFully(slots);
+			store.setCollectionLog(slots.length > 0 ? BitSet.valueOf(slots) : null, itemCount);
+			store.collectionLogIncremental = in.readBoolean();
+			return new Saved(profile, manifestVersion, store);
+		}
+	}
+}
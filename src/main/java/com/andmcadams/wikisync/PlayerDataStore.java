@@ -0,0 +1,334 @@
+package com.andmcadams.wikisync;
+
+import lombok.Getter;
+import net.runelite.api.Skill;
+
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Objects;
+
+/**
+ * Player data held in primitive arrays indexed by {@link ManifestIndex} slots. A field only has a value if its bit
+ * is set in the matching "known" set, which lets the same class represent a full state as well as a delta.
+ */
+public class PlayerDataStore
+{
+	// Lets a delta carry only the collection log bits that were newly set instead of the whole bitset
+	public static final String INCREMENTAL_COLLECTION_LOG_FEATURE = "collection-log-delta-v1";
+
+	private static final Skill[] SKILLS = Skill.values();
+
+	@Getter
+	private final ManifestIndex index;
+
+	final int[] varb;
+	final BitSet varbKnown = new BitSet();
+	final int[] varp;
+	final BitSet varpKnown = new BitSet();
+	final int[] level = new int[SKILLS.length];
+	final BitSet levelKnown = new BitSet();
+	Integer collectionLogItemCount = null;
+	// Null if unknown. In a delta this can hold only the newly set bits, see collectionLogIncremental
+	BitSet collectionLog = null;
+	boolean collectionLogIncremental;
+
+	public PlayerDataStore(ManifestIndex index)
+	{
+		this.index = index;
+		this.varb = new int[index.getVarbitCount()];
+		this.varp = new int[index.getVarpCount()];
+	}
+
+	public boolean isEmpty()
+	{
+		return varbKnown.isEmpty() && varpKnown.isEmpty() && levelKnown.isEmpty() && !hasCollectionLog();
+	}
+
+	public boolean hasCollectionLog()
+	{
+		return (collectionLog != null && !collectionLog.isEmpty()) || collectionLogItemCount != null;
+	}
+
+	public void setVarbit(int slot, int value)
+	{
+		varb[slot] = value;
+		varbKnown.set(slot);
+	}
+
+	public void setVarp(int slot, int value)
+	{
+		varp[slot] = value;
+		varpKnown.set(slot);
+	}
+
+	public void setLevel(Skill skill, int value)
+	{
+		level[skill.ordinal()] = value;
+		levelKnown.set(skill.ordinal());
+	}
+
+	/**
+	 * Sets the whole collection log. The bitset is not copied.
+	 */
+	public void setCollectionLog(BitSet slots, Integer itemCount)
+	{
+		collectionLog = slots;
+		collectionLogItemCount = itemCount;
+		collectionLogIncremental = false;
+	}
+
+	public void clearCollectionLog()
+	{
+		setCollectionLog(null, null);
+	}
+
+	/**
+	 * Copies the collection log of another store, whether it is whole or only newly set bits.
+	 */
+	public void copyCollectionLog(PlayerDataStore other)
+	{
+		collectionLog = other.collectionLog != null ? (BitSet) other.collectionLog.clone() : null;
+		collectionLogItemCount = other.collectionLogItemCount;
+		collectionLogIncremental = other.collectionLogIncremental;
+	}
+
+	/**
+	 * Compares the fields named in {@code changes} against an older state.
+	 * @param incrementalCollectionLog Whether the delta may carry only the collection log bits that were set since
+	 * {@code old}. The whole bitset is still sent if {@code old} has none, or if it does not look like the same
+	 * layout because the item count changed or bits were cleared.
+	 * @return A store holding only the fields that differ from {@code old}, or null if nothing differs.
+	 */
+	public PlayerDataStore subtract(PlayerDataStore old, ChangeTracker.Changes changes, boolean incrementalCollectionLog)
+	{
+		PlayerDataStore delta = null;
+		BitSet varbits = changes.getVarbits();
+		for (int slot = varbits.nextSetBit(0); slot >= 0; slot = varbits.nextSetBit(slot + 1))
+		{
+			if (varbKnown.get(slot) && (!old.varbKnown.get(slot) || old.varb[slot] != varb[slot]))
+			{
+				delta = delta != null ? delta : new PlayerDataStore(index);
+				delta.setVarbit(slot, varb[slot]);
+			}
+		}
+		BitSet varps = changes.getVarps();
+		for (int slot = varps.nextSetBit(0); slot >= 0; slot = varps.nextSetBit(slot + 1))
+		{
+			if (varpKnown.get(slot) && (!old.varpKnown.get(slot) || old.varp[slot] != varp[slot]))
+			{
+				delta = delta != null ? delta : new PlayerDataStore(index);
+				delta.setVarp(slot, varp[slot]);
+			}
+		}
+		if (changes.isLevels())
+		{
+			for (int i = levelKnown.nextSetBit(0); i >= 0; i = levelKnown.nextSetBit(i + 1))
+			{
+				if (!old.levelKnown.get(i) || old.level[i] != level[i])
+				{
+					delta = delta != null ? delta : new PlayerDataStore(index);
+					delta.setLevel(SKILLS[i], level[i]);
+				}
+			}
+		}
+		if (changes.isCollectionLog() && hasCollectionLog())
+		{
+			BitSet slots = collectionLog != null ? collectionLog : new BitSet();
+			BitSet oldSlots = old.collectionLog != null ? old.collectionLog : new BitSet();
+			BitSet added = (BitSet) slots.clone();
+			added.andNot(oldSlots);
+			BitSet cleared = (BitSet) oldSlots.clone();
+			cleared.andNot(slots);
+			boolean sameLayout = old.hasCollectionLog() && !old.collectionLogIncremental
+				&& Objects.equals(old.collectionLogItemCount, collectionLogItemCount) && cleared.isEmpty();
+			if (incrementalCollectionLog && sameLayout)
+			{
+				if (!added.isEmpty())
+				{
+					delta = delta != null ? delta : new PlayerDataStore(index);
+					delta.collectionLog = added;
+					delta.collectionLogItemCount = collectionLogItemCount;
+					delta.collectionLogIncremental = true;
+				}
+			}
+			else if (!added.isEmpty() || !cleared.isEmpty())
+			{
+				delta = delta != null ? delta : new PlayerDataStore(index);
+				delta.setCollectionLog((BitSet) slots.clone(), collectionLogItemCount);
+			}
+		}
+		return delta;
+	}
+
+	/**
+	 * Copies every known field of {@code delta} into this store. Both stores must share the same index.
+	 */
+	public void merge(PlayerDataStore delta)
+	{
+		for (int slot = delta.varbKnown.nextSetBit(0); slot >= 0; slot = delta.varbKnown.nextSetBit(slot + 1))
+		{
+			varb[slot] = delta.varb[slot];
+		}
+		varbKnown.or(delta.varbKnown);
+		for (int slot = delta.varpKnown.nextSetBit(0); slot >= 0; slot = delta.varpKnown.nextSetBit(slot + 1))
+		{
+			varp[slot] = delta.varp[slot];
+		}
+		varpKnown.or(delta.varpKnown);
+		for (int i = delta.levelKnown.nextSetBit(0); i >= 0; i = delta.levelKnown.nextSetBit(i + 1))
+		{
+			level[i] = delta.level[i];
+		}
+		levelKnown.or(delta.levelKnown);
+		if (delta.hasCollectionLog())
+		{
+			if (delta.collectionLogIncremental && collectionLog != null)
+			{
+				if (delta.collectionLog != null)
+				{
+					collectionLog.or(delta.collectionLog);
+				}
+				if (delta.collectionLogItemCount != null)
+				{
+					collectionLogItemCount = delta.collectionLogItemCount;
+				}
+			}
+			else
+			{
+				copyCollectionLog(delta);
+			}
+		}
+	}
+
+	/**
+	 * Forgets the fields named in {@code changes} that {@code captured} holds a fresher value for.
+	 */
+	public void discard(ChangeTracker.Changes changes, PlayerDataStore captured)
+	{
+		BitSet varbits = (BitSet) changes.getVarbits().clone();
+		varbits.and(captured.varbKnown);
+		varbKnown.andNot(varbits);
+		BitSet varps = (BitSet) changes.getVarps().clone();
+		varps.and(captured.varpKnown);
+		varpKnown.andNot(varps);
+		if (changes.isLevels())
+		{
+			levelKnown.andNot(captured.levelKnown);
+		}
+		if (changes.isCollectionLog() && captured.hasCollectionLog())
+		{
+			clearCollectionLog();
+		}
+	}
+
+	/**
+	 * Forgets the fields that still hold the value they have in {@code delta}. Fields that have since been
+	 * overwritten by something newer are kept.
+	 */
+	public void removeAcknowledged(PlayerDataStore delta)
+	{
+		if (delta.index != index)
+		{
+			delta = delta.remap(index);
+		}
+		for (int slot = delta.varbKnown.nextSetBit(0); slot >= 0; slot = delta.varbKnown.nextSetBit(slot + 1))
+		{
+			if (varb[slot] == delta.varb[slot])
+			{
+				varbKnown.clear(slot);
+			}
+		}
+		for (int slot = delta.varpKnown.nextSetBit(0); slot >= 0; slot = delta.varpKnown.nextSetBit(slot + 1))
+		{
+			if (varp[slot] == delta.varp[slot])
+			{
+				varpKnown.clear(slot);
+			}
+		}
+		for (int i = delta.levelKnown.nextSetBit(0); i >= 0; i = delta.levelKnown.nextSetBit(i + 1))
+		{
+			if (level[i] == delta.level[i])
+			{
+				levelKnown.clear(i);
+			}
+		}
+		// A whole collection log that is still waiting is not covered by newly set bits being acknowledged
+		if (delta.hasCollectionLog() && collectionLog != null && (collectionLogIncremental || !delta.collectionLogIncremental))
+		{
+			if (delta.collectionLog != null)
+			{
+				collectionLog.andNot(delta.collectionLog);
+			}
+			// Whatever is left only adds to what the server now has
+			collectionLogIncremental = true;
+			if (collectionLog.isEmpty())
+			{
+				clearCollectionLog();
+			}
+		}
+	}
+
+	/**
+	 * Moves the known fields of this store over to the slots of a different manifest. Fields that are not in the
+	 * new manifest are dropped.
+	 */
+	public PlayerDataStore remap(ManifestIndex newIndex)
+	{
+		PlayerDataStore out = new PlayerDataStore(newIndex);
+		for (int slot = varbKnown.nextSetBit(0); slot >= 0; slot = varbKnown.nextSetBit(slot + 1))
+		{
+			int newSlot = newIndex.getVarbitSlot(index.getVarbitId(slot));
+			if (newSlot != -1)
+			{
+				out.setVarbit(newSlot, varb[slot]);
+			}
+		}
+		for (int slot = varpKnown.nextSetBit(0); slot >= 0; slot = varpKnown.nextSetBit(slot + 1))
+		{
+			int newSlot = newIndex.getVarpSlot(index.getVarpId(slot));
+			if (newSlot != -1)
+			{
+				out.setVarp(newSlot, varp[slot]);
+			}
+		}
+		System.arraycopy(level, 0, out.level, 0, level.length);
+		out.levelKnown.or(levelKnown);
+		out.copyCollectionLog(this);
+		return out;
+	}
+
+	public PlayerDataStore copy()
+	{
+		return remap(index);
+	}
+
+	/**
+	 * Builds the id keyed representation that is sent to the WikiSync server.
+	 */
+	public PlayerData toPlayerData()
+	{
+		PlayerData out = new PlayerData();
+		for (int slot = varbKnown.nextSetBit(0); slot >= 0; slot = varbKnown.nextSetBit(slot + 1))
+		{
+			out.varb.put(index.getVarbitId(slot), varb[slot]);
+		}
+		for (int slot = varpKnown.nextSetBit(0); slot >= 0; slot = varpKnown.nextSetBit(slot + 1))
+		{
+			out.varp.put(index.getVarpId(slot), varp[slot]);
+		}
+		for (int i = levelKnown.nextSetBit(0); i >= 0; i = levelKnown.nextSetBit(i + 1))
+		{
+			out.level.put(SKILLS[i].getName(), level[i]);
+		}
+		out.collectionLogItemCount = collectionLogItemCount;
+		if (collectionLogIncremental)
+		{
+			out.setNewCollectionLogSlots(collectionLog);
+		}
+		else
+		{
+			out.collectionLogSlots = collectionLog != null ? Base64.getEncoder().encodeToString(collectionLog.toByteArray()) : "";
+		}
+		return out;
+	}
+}
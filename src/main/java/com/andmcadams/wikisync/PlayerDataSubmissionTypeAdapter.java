@@ -0,0 +1,72 @@
+package com.andmcadams.wikisync;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Reads and writes {@link PlayerDataSubmission} without going through reflection, matching Gson's reflective output.
+ * Registered through {@link PlayerDataTypeAdapterFactory}.
+ */
+public class PlayerDataSubmissionTypeAdapter extends TypeAdapter<PlayerDataSubmission>
+{
+	private final PlayerDataTypeAdapter playerDataTypeAdapter = new PlayerDataTypeAdapter();
+
+	@Override
+	public void write(JsonWriter out, PlayerDataSubmission submission) throws IOException
+	{
+		out.beginObject();
+		if (submission.getUsername() != null)
+		{
+			out.name("username").value(submission.getUsername());
+		}
+		if (submission.getProfile() != null)
+		{
+			out.name("profile").value(submission.getProfile());
+		}
+		if (submission.getData() != null)
+		{
+			out.name("data");
+			playerDataTypeAdapter.write(out, submission.getData());
+		}
+		out.endObject();
+	}
+
+	@Override
+	public PlayerDataSubmission read(JsonReader in) throws IOException
+	{
+		String username = null;
+		String profile = null;
+		PlayerData data = null;
+		in.beginObject();
+		while (in.hasNext())
+		{
+			String name = in.nextName();
+			if (in.peek() == JsonToken.NULL)
+			{
+				in.nextNull();
+				continue;
+			}
+			switch (name)
+			{
+				case "username":
+					username = in.nextString();
+					break;
+				case "profile":
+					profile = in.nextString();
+					break;
+				case "data":
+					data = playerDataTypeAdapter.read(in);
+					break;
+				default:
+					in.skipValue();
+					break;
+			}
+		}
+		in.endObject();
+		return new PlayerDataSubmission(username, profile, data);
+	}
+}
@@ -0,0 +1,175 @@
+package com.andmcadams.wikisync;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Reads and writes {@link PlayerData} without going through reflection. The output is identical to what Gson's
+ * reflective adapter produces, including field order and leaving out null fields. Registered through
+ * {@link PlayerDataTypeAdapterFactory}.
+ */
+public class PlayerDataTypeAdapter extends TypeAdapter<PlayerData>
+{
+	@Override
+	public void write(JsonWriter out, PlayerData data) throws IOException
+	{
+		out.beginObject();
+		writeMap(out, "varb", data.varb);
+		writeMap(out, "varp", data.varp);
+		writeMap(out, "level", data.level);
+		if (data.collectionLogItemCount != null)
+		{
+			out.name("collectionLogItemCount").value(data.collectionLogItemCount);
+		}
+		if (data.collectionLogSlots != null)
+		{
+			out.name("collectionLogSlots").value(data.collectionLogSlots);
+		}
+		writeArray(out, "collectionLogNewSlots", data.collectionLogNewSlots);
+		writeArray(out, "collectionLogNewRuns", data.collectionLogNewRuns);
+		out.endObject();
+	}
+
+	private static void writeArray(JsonWriter out, String name, int[] values) throws IOException
+	{
+		if (values == null)
+		{
+			return;
+		}
+		out.name(name).beginArray();
+		for (int value : values)
+		{
+			out.value(value);
+		}
+		out.endArray();
+	}
+
+	private static void writeMap(JsonWriter out, String name, Map<?, Integer> map) throws IOException
+	{
+		if (map == null)
+		{
+			return;
+		}
+		out.name(name).beginObject();
+		for (Map.Entry<?, Integer> entry : map.entrySet())
+		{
+			out.name(String.valueOf(entry.getKey()));
+			if (entry.getValue() == null)
+			{
+				out.nullValue();
+			}
+			else
+			{
+				out.value(entry.getValue());
+			}
+		}
+		out.endObject();
+	}
+
+	@Override
+	public PlayerData read(JsonReader in) throws IOException
+	{
+		// Like the reflective adapter, fields that are left out keep their defaults and unknown ones are skipped
+		PlayerData data = new PlayerData();
+		in.beginObject();
+		while (in.hasNext())
+		{
+			switch (in.nextName())
+			{
+				case "varb":
+					data.varb = readMap(in, Integer::valueOf);
+					break;
+				case "varp":
+					data.varp = readMap(in, Integer::valueOf);
+					break;
+				case "level":
+					data.level = readMap(in, Function.identity());
+					break;
+				case "collectionLogItemCount":
+					data.collectionLogItemCount = readInteger(in);
+					break;
+				case "collectionLogSlots":
+					data.collectionLogSlots = readString(in);
+					break;
+				case "collectionLogNewSlots":
+					data.collectionLogNewSlots = readArray(in);
+					break;
+				case "collectionLogNewRuns":
+					data.collectionLogNewRuns = readArray(in);
+					break;
+				default:
+					in.skipValue();
+					break;
+			}
+		}
+		in.endObject();
+		return data;
+	}
+
+	private static Integer readInteger(JsonReader in) throws IOException
+	{
+		if (in.peek() == JsonToken.NULL)
+		{
+			in.nextNull();
+			return null;
+		}
+		return in.nextInt();
+	}
+
+	private static String readString(JsonReader in) throws IOException
+	{
+		if (in.peek() == JsonToken.NULL)
+		{
+			in.nextNull();
+			return null;
+		}
+		return in.nextString();
+	}
+
+	private static int[] readArray(JsonReader in) throws IOException
+	{
+		if (in.peek() == JsonToken.NULL)
+		{
+			in.nextNull();
+			return null;
+		}
+		int[] values = new int[16];
+		int size = 0;
+		in.beginArray();
+		while (in.hasNext())
+		{
+			if (size == values.length)
+			{
+				values = Arrays.copyOf(values, 2 * size);
+			}
+			values[size++] = in.nextInt();
+		}
+		in.endArray();
+		return Arrays.copyOf(values, size);
+	}
+
+	private static <K> Map<K, Integer> readMap(JsonReader in, Function<String, K> key) throws IOException
+	{
+		if (in.peek() == JsonToken.NULL)
+		{
+			in.nextNull();
+			return null;
+		}
+		Map<K, Integer> map = new HashMap<>();
+		in.beginObject();
+		while (in.hasNext())
+		{
+			map.put(key.apply(in.nextName()), readInteger(in));
+		}
+		in.endObject();
+		return map;
+	}
+}
@@ -0,0 +1,30 @@
+package com.andmcadams.wikisync;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * Hands out the hand-written adapters for {@link PlayerData} and {@link PlayerDataSubmission}. These are registered
+ * on the plugin's Gson instance rather than annotated on the types, so that a plain {@code new Gson()} still goes
+ * through reflection and can be compared against them.
+ */
+public class PlayerDataTypeAdapterFactory implements TypeAdapterFactory
+{
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type)
+	{
+		if (type.getRawType() == PlayerData.class)
+		{
+			return (TypeAdapter<T>) new PlayerDataTypeAdapter().nullSafe();
+		}
+		if (type.getRawType() == PlayerDataSubmission.class)
+		{
+			return (TypeAdapter<T>) new PlayerDataSubmissionTypeAdapter().nullSafe();
+		}
+		return null;
+	}
+}
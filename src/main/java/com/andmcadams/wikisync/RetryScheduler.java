@@ -0,0 +1,120 @@
+package com.andmcadams.wikisync;
+
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Response;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when uploads may be attempted after failures. Each consecutive failure doubles the delay before the
+ * next attempt, with jitter so that clients do not retry in lockstep after an outage, and a Retry-After sent with
+ * a 429 or 503 is honoured. After enough consecutive failures the circuit opens and nothing is attempted for a
+ * while, after which a single trial upload decides whether it closes again.
+ */
+@Slf4j
+public class RetryScheduler
+{
+	private static final long BASE_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+	private static final long MAX_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+	private static final long MAX_RETRY_AFTER_MILLIS = TimeUnit.HOURS.toMillis(1);
+	private static final int FAILURES_TO_OPEN = 6;
+	private static final long OPEN_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+	private int consecutiveFailures;
+	private long nextAttemptAt;
+	private boolean open;
+	private boolean trialInFlight;
+
+	/**
+	 * @return Whether an upload may be attempted now. While the circuit is open only a single trial is let through
+	 * once it has been open long enough.
+	 */
+	public synchronized boolean canAttempt()
+	{
+		return !trialInFlight && System.currentTimeMillis() >= nextAttemptAt;
+	}
+
+	/**
+	 * Called when an upload is actually sent.
+	 */
+	public synchronized void onAttempt()
+	{
+		if (open)
+		{
+			log.debug("Trying an upload with the circuit open");
+			trialInFlight = true;
+		}
+	}
+
+	public synchronized void onSuccess()
+	{
+		if (open)
+		{
+			log.debug("Upload succeeded, closing the circuit");
+		}
+		consecutiveFailures = 0;
+		nextAttemptAt = 0;
+		open = false;
+		trialInFlight = false;
+	}
+
+	/**
+	 * @param response The server's response, or null if there was none.
+	 */
+	public synchronized void onFailure(Response response)
+	{
+		consecutiveFailures++;
+		trialInFlight = false;
+
+		long delay = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(consecutiveFailures - 1, 16));
+		delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+		if (consecutiveFailures >= FAILURES_TO_OPEN)
+		{
+			if (!open)
+			{
+				log.debug("{} uploads failed in a row, opening the circuit", consecutiveFailures);
+			}
+			open = true;
+			delay = OPEN_MILLIS;
+		}
+		long retryAfter = response != null && (response.code() == 429 || response.code() == 503)
+			? parseRetryAfter(response.header("Retry-After"))
+			: -1;
+		delay = Math.max(delay, Math.min(retryAfter, MAX_RETRY_AFTER_MILLIS));
+		nextAttemptAt = System.currentTimeMillis() + delay;
+		log.debug("Next upload attempt in {}ms", delay);
+	}
+
+	/**
+	 * @return The delay asked for in milliseconds, or -1 if there is none.
+	 */
+	private static long parseRetryAfter(String value)
+	{
+		if (value == null)
+		{
+			return -1;
+		}
+		try
+		{
+			return TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+		}
+		catch (NumberFormatException e)
+		{
+			// Not a number of seconds, so it has to be an HTTP date
+		}
+		try
+		{
+			ZonedDateTime date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+			return date.toInstant().toEpochMilli() - System.currentTimeMillis();
+		}
+		catch (DateTimeParseException e)
+		{
+			log.debug("Ignoring malformed Retry-After: {}", value);
+			return -1;
+		}
+	}
+}
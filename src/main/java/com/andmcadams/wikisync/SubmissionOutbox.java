@@ -0,0 +1,232 @@
+package com.andmcadams.wikisync;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Holds on to every delta that has not been acknowledged yet, one coalesced store per profile with newer values
+ * replacing older ones. The outbox is written to disk as soon as an upload fails, when a collection log is captured
+ * while uploads are held back, and on logout and shutdown, so changes made while the sync server is unreachable
+ * survive logging out or closing the client, and are replayed once uploads succeed again.
+ */
+@Slf4j
+@Singleton
+public class SubmissionOutbox
+{
+	private static final int MAX_PROFILES = 32;
+
+	private final PlayerDataFileStore fileStore;
+	private final ScheduledExecutorService executor;
+
+	// In the order profiles first had something pending, which is also the order they are replayed in
+	private final Map<PlayerProfile, PlayerDataStore> pending = new LinkedHashMap<>();
+	private final Set<PlayerProfile> onDisk = new HashSet<>();
+	// Profiles whose outbox changed since it was last written to disk
+	private final Set<PlayerProfile> unsaved = new HashSet<>();
+	private PlayerProfile replaying;
+	private ManifestIndex index;
+
+	@Value
+	public static class Replay
+	{
+		PlayerProfile profile;
+		PlayerDataStore delta;
+	}
+
+	@Inject
+	private SubmissionOutbox(PlayerDataFileStore fileStore, ScheduledExecutorService executor)
+	{
+		this.fileStore = fileStore;
+		this.executor = executor;
+	}
+
+	/**
+	 * Moves everything over to a new manifest. The first manifest of a session also picks up whatever was left
+	 * in the outbox by earlier sessions.
+	 */
+	public synchronized void install(ManifestIndex newIndex)
+	{
+		if (index == null)
+		{
+			for (PlayerDataFileStore.Saved saved : fileStore.loadAll(PlayerDataFileStore.OUTBOX, newIndex))
+			{
+				pending.put(saved.getProfile(), saved.getStore());
+				onDisk.add(saved.getProfile());
+			}
+			if (!pending.isEmpty())
+			{
+				log.debug("Loaded unacknowledged changes for {} profiles", pending.size());
+			}
+		}
+		else
+		{
+			pending.replaceAll((profile, store) -> store.remap(newIndex));
+		}
+		index = newIndex;
+	}
+
+	/**
+	 * Adds a freshly captured delta to the profile's outbox, dropping anything the capture read a newer value for.
+	 * @return The delta to upload. A collection log that never made it to the server is added to it, since the
+	 * collection log is only captured when the player opens it.
+	 */
+	public synchronized PlayerDataStore record(PlayerProfile profile, ChangeTracker.Changes changes,
+		PlayerDataStore captured, PlayerDataStore delta)
+	{
+		PlayerDataStore store = pending.get(profile);
+		if (store != null && store.getIndex() == captured.getIndex())
+		{
+			store.discard(changes, captured);
+			if (store.hasCollectionLog() && (delta == null || !delta.hasCollectionLog()))
+			{
+				delta = delta != null ? delta : new PlayerDataStore(captured.getIndex());
+				delta.copyCollectionLog(store);
+			}
+		}
+
+		if (delta == null)
+		{
+			if (store != null && store.isEmpty())
+			{
+				remove(profile);
+			}
+			return null;
+		}
+		if (store == null)
+		{
+			store = new PlayerDataStore(delta.getIndex());
+			add(profile, store);
+		}
+		store.merge(delta);
+		unsaved.add(profile);
+		return delta;
+	}
+
+	/**
+	 * Writes the profile's outbox to disk after an upload failed or something was recorded while uploads are held
+	 * back by the retry scheduler.
+	 */
+	public synchronized void persist(PlayerProfile profile)
+	{
+		if (profile.equals(replaying))
+		{
+			replaying = null;
+		}
+		save(profile);
+	}
+
+	/**
+	 * Writes every outbox that changed since it was last written to disk, on logout and shutdown.
+	 */
+	public synchronized void persistAll()
+	{
+		for (PlayerProfile profile : new ArrayList<>(unsaved))
+		{
+			save(profile);
+		}
+	}
+
+	/**
+	 * Forgets whatever the server acknowledged from the profile's outbox.
+	 */
+	public synchronized void acknowledged(PlayerProfile profile, PlayerDataStore delta)
+	{
+		if (profile.equals(replaying))
+		{
+			replaying = null;
+		}
+		PlayerDataStore store = pending.get(profile);
+		if (store == null)
+		{
+			return;
+		}
+		store.removeAcknowledged(delta);
+		if (store.isEmpty())
+		{
+			remove(profile);
+		}
+		else if (onDisk.contains(profile))
+		{
+			save(profile);
+		}
+	}
+
+	/**
+	 * @return The oldest outbox of a profile other than the logged in one, or null if there is nothing to replay
+	 * or a replay is already in flight. The logged in profile's changes are picked up by the regular uploads.
+	 * @param busy Profiles that already have an upload in flight.
+	 */
+	public synchronized Replay takeReplay(PlayerProfile loggedIn, Set<PlayerProfile> busy)
+	{
+		if (replaying != null)
+		{
+			return null;
+		}
+		for (Map.Entry<PlayerProfile, PlayerDataStore> entry : pending.entrySet())
+		{
+			if (!entry.getKey().equals(loggedIn) && !busy.contains(entry.getKey()) && !entry.getValue().isEmpty()
+				&& entry.getValue().getIndex() == index)
+			{
+				replaying = entry.getKey();
+				return new Replay(entry.getKey(), entry.getValue().copy());
+			}
+		}
+		return null;
+	}
+
+	private void add(PlayerProfile profile, PlayerDataStore store)
+	{
+		pending.put(profile, store);
+		Iterator<PlayerProfile> it = pending.keySet().iterator();
+		while (pending.size() > MAX_PROFILES && it.hasNext())
+		{
+			PlayerProfile eldest = it.next();
+			if (!eldest.equals(profile) && !eldest.equals(replaying))
+			{
+				log.debug("Outbox is full, dropping unacknowledged changes for {}", eldest);
+				it.remove();
+				unsaved.remove(eldest);
+				deleteFile(eldest);
+			}
+		}
+	}
+
+	private void remove(PlayerProfile profile)
+	{
+		pending.remove(profile);
+		unsaved.remove(profile);
+		deleteFile(profile);
+	}
+
+	private void save(PlayerProfile profile)
+	{
+		PlayerDataStore store = pending.get(profile);
+		if (store == null || store.isEmpty())
+		{
+			remove(profile);
+			return;
+		}
+		onDisk.add(profile);
+		unsaved.remove(profile);
+		PlayerDataStore snapshot = store.copy();
+		executor.execute(() -> fileStore.save(profile, PlayerDataFileStore.OUTBOX, snapshot));
+	}
+
+	private void deleteFile(PlayerProfile profile)
+	{
+		if (onDisk.remove(profile))
+		{
+			executor.execute(() -> fileStore.delete(profile, PlayerDataFileStore.OUTBOX));
+		}
+	}
+}
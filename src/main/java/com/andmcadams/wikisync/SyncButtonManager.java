@@ -56,6 +56,9 @@ public class SyncButtonManager {
     @Setter
     private boolean syncAllowed;
 
+    // Told about a click before the search it opens starts listing items
+    private Runnable onSync;
+
     @Inject
     private SyncButtonManager(
             Client client,
@@ -68,8 +71,9 @@ public class SyncButtonManager {
         this.eventBus = eventBus;
     }
 
-    public void startUp()
+    public void startUp(Runnable onSync)
     {
+        this.onSync = onSync;
         setSyncAllowed(false);
         eventBus.register(this);
         clientThread.invokeLater(() -> tryAddButton(this::onButtonClick));
@@ -118,6 +122,7 @@ public class SyncButtonManager {
 
     void onButtonClick() {
         setSyncAllowed(true);
+        onSync.run();
         client.menuAction(-1, InterfaceID.Collection.SEARCH_TOGGLE, MenuAction.CC_OP, 1, -1, "Search", null);
         client.runScript(2240);
         client.addChatMessage(ChatMessageType.CONSOLE, "WikiSync", "Your collection log data is being sent to WikiSync...", "WikiSync");
@@ -0,0 +1,221 @@
+package com.andmcadams.wikisync;
+
+import lombok.Getter;
+import net.runelite.api.VarbitComposition;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntFunction;
+
+/**
+ * A manifest compiled down to flat arrays describing how to read it. Varbits are grouped by the varp they live in,
+ * so each varp only has to be read once per capture and all of its varbits are decoded from that single value.
+ * Plans are immutable and only rebuilt when a new manifest is installed.
+ */
+public class VarReadPlan
+{
+	@Getter
+	private final ManifestIndex index;
+
+	// The varp each group reads, -1 for the group of varbits that could not be found in the cache
+	private final int[] groupVarps;
+	// The slot of the group's varp if the manifest asks for the varp itself, -1 otherwise
+	private final int[] groupVarpSlots;
+	// The varbits of group g are the entries in [groupStart[g], groupStart[g + 1])
+	private final int[] groupStart;
+	private final int[] entrySlots;
+	private final int[] entryShifts;
+	private final int[] entryMasks;
+
+	// Lookups from varbit/varp slot to group, and from varp id to group
+	private final int[] varbitSlotGroups;
+	private final int[] varpSlotGroups;
+	private final int[] varpIdGroups;
+
+	private VarReadPlan(ManifestIndex index, int[] groupVarps, int[] groupVarpSlots, int[] groupStart,
+		int[] entrySlots, int[] entryShifts, int[] entryMasks)
+	{
+		this.index = index;
+		this.groupVarps = groupVarps;
+		this.groupVarpSlots = groupVarpSlots;
+		this.groupStart = groupStart;
+		this.entrySlots = entrySlots;
+		this.entryShifts = entryShifts;
+		this.entryMasks = entryMasks;
+
+		varbitSlotGroups = new int[index.getVarbitCount()];
+		varpSlotGroups = new int[index.getVarpCount()];
+		Arrays.fill(varpSlotGroups, -1);
+		int maxVarp = -1;
+		for (int varp : groupVarps)
+		{
+			maxVarp = Math.max(maxVarp, varp);
+		}
+		varpIdGroups = new int[maxVarp + 1];
+		Arrays.fill(varpIdGroups, -1);
+		for (int group = 0; group < groupVarps.length; group++)
+		{
+			for (int entry = groupStart[group]; entry < groupStart[group + 1]; entry++)
+			{
+				varbitSlotGroups[entrySlots[entry]] = group;
+			}
+			if (groupVarpSlots[group] != -1)
+			{
+				varpSlotGroups[groupVarpSlots[group]] = group;
+			}
+			if (groupVarps[group] >= 0)
+			{
+				varpIdGroups[groupVarps[group]] = group;
+			}
+		}
+	}
+
+	/**
+	 * Compiles the read plan for a manifest.
+	 * @param compositions Looks up the composition of a varbit, returning null if it is not in the cache.
+	 */
+	public static VarReadPlan compile(ManifestIndex index, IntFunction<VarbitComposition> compositions)
+	{
+		int varbitCount = index.getVarbitCount();
+		int varpCount = index.getVarpCount();
+
+		// Work out the parent varp of every varbit, then sort the varbits so those sharing a varp are adjacent
+		long[] parentAndSlot = new long[varbitCount];
+		int[] shifts = new int[varbitCount];
+		int[] masks = new int[varbitCount];
+		for (int slot = 0; slot < varbitCount; slot++)
+		{
+			VarbitComposition v = compositions.apply(index.getVarbitId(slot));
+			int parent = -1;
+			if (v == null)
+			{
+				// Matches what we have always sent for unknown varbits: the varp value of -1, unmasked
+				masks[slot] = -1;
+			}
+			else
+			{
+				int lsb = v.getLeastSignificantBit();
+				int msb = v.getMostSignificantBit();
+				parent = v.getIndex();
+				shifts[slot] = lsb;
+				masks[slot] = (1 << ((msb - lsb) + 1)) - 1;
+			}
+			parentAndSlot[slot] = ((long) parent << 32) | slot;
+		}
+		Arrays.sort(parentAndSlot);
+
+		// Varps that are asked for directly get a group of their own if no varbit lives in them
+		int[] sortedVarps = new int[varpCount];
+		for (int slot = 0; slot < varpCount; slot++)
+		{
+			sortedVarps[slot] = index.getVarpId(slot);
+		}
+		Arrays.sort(sortedVarps);
+
+		int maxGroups = varbitCount + varpCount;
+		int[] groupVarps = new int[maxGroups];
+		int[] groupStart = new int[maxGroups + 1];
+		int[] entrySlots = new int[varbitCount];
+		int[] entryShifts = new int[varbitCount];
+		int[] entryMasks = new int[varbitCount];
+		int groups = 0;
+		int entry = 0;
+		int varpCursor = 0;
+		while (entry < varbitCount || varpCursor < varpCount)
+		{
+			int nextVarbitParent = entry < varbitCount ? (int) (parentAndSlot[entry] >> 32) : Integer.MAX_VALUE;
+			int nextVarp = varpCursor < varpCount ? sortedVarps[varpCursor] : Integer.MAX_VALUE;
+			int varp = Math.min(nextVarbitParent, nextVarp);
+			while (varpCursor < varpCount && sortedVarps[varpCursor] == varp)
+			{
+				varpCursor++;
+			}
+
+			groupVarps[groups] = varp;
+			groupStart[groups] = entry;
+			while (entry < varbitCount && (int) (parentAndSlot[entry] >> 32) == varp)
+			{
+				int slot = (int) parentAndSlot[entry];
+				entrySlots[entry] = slot;
+				entryShifts[entry] = shifts[slot];
+				entryMasks[entry] = masks[slot];
+				entry++;
+			}
+			groups++;
+		}
+		groupStart[groups] = entry;
+
+		int[] groupVarpSlots = new int[groups];
+		for (int group = 0; group < groups; group++)
+		{
+			groupVarpSlots[group] = groupVarps[group] >= 0 ? index.getVarpSlot(groupVarps[group]) : -1;
+		}
+
+		return new VarReadPlan(index, Arrays.copyOf(groupVarps, groups), groupVarpSlots,
+			Arrays.copyOf(groupStart, groups + 1), entrySlots, entryShifts, entryMasks);
+	}
+
+	public int getGroupCount()
+	{
+		return groupVarps.length;
+	}
+
+	/**
+	 * @return The varp read by the group, or -1 if the group has no varp to read.
+	 */
+	public int getGroupVarp(int group)
+	{
+		return groupVarps[group];
+	}
+
+	/**
+	 * @return The group reading the given varp, or -1 if nothing in the manifest depends on it.
+	 */
+	public int getGroupForVarp(int varpId)
+	{
+		return varpId >= 0 && varpId < varpIdGroups.length ? varpIdGroups[varpId] : -1;
+	}
+
+	public int getGroupForVarbitSlot(int slot)
+	{
+		return varbitSlotGroups[slot];
+	}
+
+	/**
+	 * @return The group for a varp slot. Every varp in the manifest has a group.
+	 */
+	public int getGroupForVarpSlot(int slot)
+	{
+		return varpSlotGroups[slot];
+	}
+
+	/**
+	 * Sets the varbit and varp slots that are read by the group.
+	 */
+	public void markSlots(int group, BitSet varbits, BitSet varps)
+	{
+		for (int entry = groupStart[group]; entry < groupStart[group + 1]; entry++)
+		{
+			varbits.set(entrySlots[entry]);
+		}
+		if (groupVarpSlots[group] != -1)
+		{
+			varps.set(groupVarpSlots[group]);
+		}
+	}
+
+	/**
+	 * Decodes everything in the group from the value of its varp.
+	 */
+	public void read(int group, int varpValue, PlayerDataStore out)
+	{
+		if (groupVarpSlots[group] != -1)
+		{
+			out.setVarp(groupVarpSlots[group], varpValue);
+		}
+		for (int entry = groupStart[group]; entry < groupStart[group + 1]; entry++)
+		{
+			out.setVarbit(entrySlots[entry], (varpValue >> entryShifts[entry]) & entryMasks[entry]);
+		}
+	}
+}
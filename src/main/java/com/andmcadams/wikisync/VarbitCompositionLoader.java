@@ -0,0 +1,128 @@
+package com.andmcadams.wikisync;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import net.runelite.api.Client;
+import net.runelite.api.GameState;
+import net.runelite.api.VarbitComposition;
+import net.runelite.client.callback.ClientThread;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+import javax.inject.Inject;
+
+/**
+ * Loads the compositions of the varbits a manifest asks for. Decoding thousands of varbits from the cache in one
+ * go causes a noticeable hitch, so the work is spread over as many client ticks as needed with a small time budget
+ * per tick.
+ */
+@Slf4j
+public class VarbitCompositionLoader
+{
+	private static final int VARBITS_ARCHIVE_ID = 14;
+	private static final long BUDGET_PER_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+	private final Client client;
+	private final ClientThread clientThread;
+
+	// Only touched on the client thread
+	private Map<Integer, VarbitComposition> compositions = new HashMap<>();
+	private final AtomicInteger generation = new AtomicInteger();
+
+	@Inject
+	private VarbitCompositionLoader(Client client, ClientThread clientThread)
+	{
+		this.client = client;
+		this.clientThread = clientThread;
+	}
+
+	/**
+	 * Starts loading the given varbits, abandoning any load that is still in progress. Compositions that were
+	 * already loaded for a previous manifest are reused, and ones that are no longer needed are dropped.
+	 * @param onProgress Called on the client thread after every tick spent loading, with how many of the varbits
+	 * have been looked at so far.
+	 * @param onLoaded Called on the client thread with a map of every varbit that exists in the cache.
+	 */
+	public void load(int[] varbitIds, IntConsumer onProgress, Consumer<Map<Integer, VarbitComposition>> onLoaded)
+	{
+		clientThread.invoke(new Load(generation.incrementAndGet(), varbitIds.clone(), onProgress, onLoaded));
+	}
+
+	/**
+	 * Abandons any load that is still in progress.
+	 */
+	public void cancel()
+	{
+		generation.incrementAndGet();
+	}
+
+	@RequiredArgsConstructor
+	private class Load implements BooleanSupplier
+	{
+		private final int loadGeneration;
+		private final int[] ids;
+		private final IntConsumer onProgress;
+		private final Consumer<Map<Integer, VarbitComposition>> onLoaded;
+
+		private int[] fileIds;
+		private int cursor;
+		private int ticks;
+
+		@Override
+		public boolean getAsBoolean()
+		{
+			if (loadGeneration != generation.get())
+			{
+				return true;
+			}
+			if (client.getIndexConfig() == null || client.getGameState().ordinal() < GameState.LOGIN_SCREEN.ordinal())
+			{
+				log.debug("Failed to get varbitComposition, state = {}", client.getGameState());
+				return false;
+			}
+			if (fileIds == null)
+			{
+				fileIds = client.getIndexConfig().getFileIds(VARBITS_ARCHIVE_ID).clone();
+				Arrays.sort(fileIds);
+			}
+
+			long deadline = System.nanoTime() + BUDGET_PER_TICK_NANOS;
+			ticks++;
+			while (cursor < ids.length && System.nanoTime() < deadline)
+			{
+				int id = ids[cursor++];
+				if (!compositions.containsKey(id) && Arrays.binarySearch(fileIds, id) >= 0)
+				{
+					compositions.put(id, client.getVarbit(id));
+				}
+			}
+			onProgress.accept(cursor);
+			if (cursor < ids.length)
+			{
+				return false;
+			}
+
+			Map<Integer, VarbitComposition> loaded = new HashMap<>();
+			for (int id : ids)
+			{
+				VarbitComposition v = compositions.get(id);
+				if (v != null)
+				{
+					loaded.put(id, v);
+				}
+			}
+			compositions = loaded;
+			log.debug("Loaded {} varbit compositions over {} ticks", loaded.size(), ticks);
+			onLoaded.accept(Collections.unmodifiableMap(loaded));
+			return true;
+		}
+	}
+}
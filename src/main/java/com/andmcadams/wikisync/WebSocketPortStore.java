@@ -0,0 +1,57 @@
+package com.andmcadams.wikisync;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Remembers the port the local WebSocket server last started on, so that it can be tried first after the client
+ * restarts. It is kept next to the other WikiSync files rather than in the config, which RuneLite syncs to the cloud.
+ */
+@Slf4j
+@Singleton
+public class WebSocketPortStore
+{
+	private static final File FILE = new File(PlayerDataFileStore.DIRECTORY, "websocket.port");
+
+	/**
+	 * @return The port that was saved, or -1 if there is none.
+	 */
+	public int load()
+	{
+		try
+		{
+			return Integer.parseInt(new String(Files.readAllBytes(FILE.toPath()), StandardCharsets.UTF_8).trim());
+		}
+		catch (NoSuchFileException e)
+		{
+			return -1;
+		}
+		catch (IOException | RuntimeException e)
+		{
+			log.debug("Failed to read {}: ", FILE, e);
+			return -1;
+		}
+	}
+
+	public void save(int port)
+	{
+		try
+		{
+			Files.createDirectories(FILE.getParentFile().toPath());
+			File tmp = new File(FILE.getParentFile(), FILE.getName() + ".tmp");
+			Files.write(tmp.toPath(), String.valueOf(port).getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp.toPath(), FILE.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e)
+		{
+			log.debug("Failed to write {}: ", FILE, e);
+		}
+	}
+}
@@ -33,6 +33,7 @@ public interface WikiSyncConfig extends Config
 {
 	String WIKISYNC_VERSION_KEYNAME = "version";
 	String ENABLE_LOCAL_WEB_SOCKET_SERVER_KEYNAME = "enableLocalWebSocketServer";
+	String COMPRESS_UPLOADS_KEYNAME = "compressUploads";
 
 	@ConfigItem(keyName = WIKISYNC_VERSION_KEYNAME, name = "Version", description = "The last version of WikiSync used by the player", hidden = true)
 	default int wikiSyncVersion()
@@ -48,4 +49,12 @@ public interface WikiSyncConfig extends Config
 	{
 		return true;
 	}
+
+	@ConfigItem(keyName = COMPRESS_UPLOADS_KEYNAME,
+		name = "Compress uploads",
+		description = "If enabled, large uploads to the WikiSync server are gzip compressed to use less bandwidth.")
+	default boolean compressUploads()
+	{
+		return true;
+	}
 }
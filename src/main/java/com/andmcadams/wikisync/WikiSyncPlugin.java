@@ -27,6 +27,7 @@ package com.andmcadams.wikisync;
 import com.andmcadams.wikisync.dps.DpsDataFetcher;
 import com.andmcadams.wikisync.dps.WebSocketManager;
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.inject.Provides;
 import lombok.extern.slf4j.Slf4j;
@@ -34,6 +35,8 @@ import net.runelite.api.*;
 import net.runelite.api.events.GameStateChanged;
 import net.runelite.api.events.GameTick;
 import net.runelite.api.events.ScriptPreFired;
+import net.runelite.api.events.StatChanged;
+import net.runelite.api.events.VarbitChanged;
 import net.runelite.client.callback.ClientThread;
 import net.runelite.client.config.ConfigManager;
 import net.runelite.client.config.RuneScapeProfileType;
@@ -47,14 +50,11 @@ import okhttp3.*;
 
 import javax.inject.Inject;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 @Slf4j
 @PluginDescriptor(
@@ -95,32 +95,69 @@ public class WikiSyncPlugin extends Plugin
 	@Inject
 	private ScheduledExecutorService scheduledExecutorService;
 
+	@Inject
+	private VarbitCompositionLoader varbitCompositionLoader;
+
+	@Inject
+	private PlayerDataFileStore playerDataFileStore;
+
+	@Inject
+	private SubmissionOutbox outbox;
+
+	@Inject
+	private ManifestCache manifestCache;
+
+	@Inject
+	private CollectionLogItemCache collectionLogItemCache;
+
 	private static final int SECONDS_BETWEEN_UPLOADS = 10;
 	private static final int SECONDS_BETWEEN_MANIFEST_CHECKS = 1200;
 
 	private static final String MANIFEST_URL = "https://sync.runescape.wiki/runelite/manifest";
 	private static final String SUBMIT_URL = "https://sync.runescape.wiki/runelite/submit";
-	private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
-
-	private static final int VARBITS_ARCHIVE_ID = 14;
-	private Map<Integer, VarbitComposition> varbitCompositions = new HashMap<>();
+	private static final MediaType BINARY = MediaType.parse("application/octet-stream");
+	// Below this size gzip's header and the extra CPU are not worth it
+	private static final int GZIP_THRESHOLD_BYTES = 1024;
 
 	public static final String CONFIG_GROUP_KEY = "WikiSync";
 	// THIS VERSION SHOULD BE INCREMENTED EVERY RELEASE WHERE WE ADD A NEW TOGGLE
-	public static final int VERSION = 1;
-
-	private Manifest manifest;
-	private Map<PlayerProfile, PlayerData> playerDataMap = new HashMap<>();
+	public static final int VERSION = 2;
+
+	private volatile Manifest manifest;
+	// The installed manifest as it was downloaded, along with the validators to revalidate it with
+	private volatile ManifestCache.Entry manifestSource;
+	private ManifestIndex manifestIndex;
+	private VarReadPlan readPlan;
+	// How many of the manifest's varbits have been loaded, while the read plan is waiting on them. Only touched on
+	// the client thread
+	private int varbitsLoaded;
+	// The player's data as of the last capture, and the data the server has acknowledged for each profile
+	private PlayerDataStore currentPlayerData;
+	private Map<PlayerProfile, PlayerDataStore> playerDataMap = new HashMap<>();
+	// The profile currentPlayerData was last captured for
+	private PlayerProfile currentProfile;
+	// The delta of the upload that is waiting for a response, per profile. Only one upload per profile is sent at a time
+	private final Map<PlayerProfile, PlayerDataStore> inFlight = new HashMap<>();
+	private final ChangeTracker changeTracker = new ChangeTracker();
 	private boolean webSocketStarted;
-	private int cyclesSinceSuccessfulCall = 0;
+	private final RetryScheduler retryScheduler = new RetryScheduler();
+	// Set once the server turns down a compressed upload, so that we stop compressing for this session
+	private volatile boolean gzipRejected;
+	// The injected Gson instance with the submission adapters registered on it
+	private Gson submissionGson;
 
 	// Keeps track of what collection log slots the user has set.
 	private static final BitSet clogItemsBitSet = new BitSet();
 	private static Integer clogItemsCount = null;
-	// Map item ids to bit index in the bitset
-	private static final HashMap<Integer, Integer> collectionLogItemIdToBitsetIndex = new HashMap<>();
-	private int tickCollectionLogScriptFired = -1;
-	private final HashSet<Integer> collectionLogItemIdsFromCache = new HashSet<>();
+	// Maps item ids to their bit in the bitset. Replaced as a whole whenever the manifest or the cache changes
+	private volatile CollectionLogIndex collectionLogIndex = CollectionLogIndex.EMPTY;
+	// The sync button click currently being captured, only touched on the client thread
+	private CollectionLogCaptureSession collectionLogSession;
+	private volatile Set<Integer> collectionLogItemIdsFromCache = Collections.emptySet();
+	// Set once the collection log listed an item we do not know, which walks the game cache again once per session
+	private boolean collectionLogRewalked;
+	// The hash of the manifest collections the items were last walked for, null until the saved items are loaded
+	private Integer collectionLogItemsWalkedFor;
 
 	@Provides
 	WikiSyncConfig getConfig(ConfigManager configManager)
@@ -131,27 +168,38 @@ public class WikiSyncPlugin extends Plugin
 	@Override
 	public void startUp()
 	{
-		clientThread.invoke(() -> {
-			if (client.getIndexConfig() == null || client.getGameState().ordinal() < GameState.LOGIN_SCREEN.ordinal())
+		submissionGson = gson.newBuilder()
+			.registerTypeAdapterFactory(new PlayerDataTypeAdapterFactory())
+			.create();
+		changeTracker.markAllDirty();
+		scheduledExecutorService.execute(() -> {
+			// The game cache is only walked when nothing was saved for this revision
+			CollectionLogItemCache.Entry saved = collectionLogItemCache.load(client.getRevision());
+			if (saved != null)
 			{
-				log.debug("Failed to get varbitComposition, state = {}", client.getGameState());
-				return false;
+				collectionLogItemIdsFromCache = saved.getItemIds();
+				rebuildCollectionLogIndex();
+				onCollectionLogItemsWalked(saved.getCollectionsHash());
 			}
-			collectionLogItemIdsFromCache.addAll(parseCacheForClog());
-			populateCollectionLogItemIdToBitsetIndex();
-			final int[] varbitIds = client.getIndexConfig().getFileIds(VARBITS_ARCHIVE_ID);
-			for (int id : varbitIds)
+			else
 			{
-				varbitCompositions.put(id, client.getVarbit(id));
+				parseCollectionLogItems();
 			}
-			return true;
 		});
 
-		checkManifest();
+		scheduledExecutorService.execute(() -> {
+			// Syncing can start from the cached manifest while the server is asked whether it is still current
+			ManifestCache.Entry cached = manifestCache.load();
+			if (cached != null && parseAndInstallManifest(cached, null) != null)
+			{
+				log.debug("Installed cached manifest version {}", manifest.version);
+			}
+			checkManifest(true);
+		});
 		if (config.enableLocalWebSocketServer()) {
 			startUpWebSocketManager();
 		}
-		syncButtonManager.startUp();
+		syncButtonManager.startUp(this::onSyncButtonClicked);
 	}
 
 	private void startUpWebSocketManager()
@@ -168,6 +216,10 @@ public class WikiSyncPlugin extends Plugin
 		log.debug("WikiSync stopped!");
 		clogItemsBitSet.clear();
 		clogItemsCount = null;
+		collectionLogSession = null;
+		collectionLogRewalked = false;
+		varbitCompositionLoader.cancel();
+		outbox.persistAll();
 		shutDownWebSocketManager();
 		syncButtonManager.shutDown();
 	}
@@ -186,14 +238,15 @@ public class WikiSyncPlugin extends Plugin
 	 * @return The index of the bit that represents the given itemId, if it is in the map. -1 otherwise.
 	 */
 	private int lookupCollectionLogItemIndex(int itemId) {
-		// The map has not loaded yet, or failed to load.
-		if (collectionLogItemIdToBitsetIndex.isEmpty()) {
-			return -1;
-		}
-		Integer result = collectionLogItemIdToBitsetIndex.get(itemId);
-		if (result == null) {
+		int result = collectionLogIndex.getBit(itemId);
+		if (result == -1) {
 			log.debug("Item id {} not found in the mapping of items", itemId);
-			return -1;
+			// The saved items are older than the game cache, which a game update can change without a new revision
+			if (!collectionLogRewalked)
+			{
+				collectionLogRewalked = true;
+				parseCollectionLogItems();
+			}
 		}
 		return result;
 	}
@@ -203,48 +256,115 @@ public class WikiSyncPlugin extends Plugin
 	{
 		switch (event.getGameState())
 		{
+			case LOGIN_SCREEN:
+				// Whatever was recorded but never acknowledged has to survive closing the client from here
+				outbox.persistAll();
+				break;
 			// When hopping, we need to clear any state related to the player
 			case HOPPING:
 			case LOGGING_IN:
 			case CONNECTION_LOST:
 				clogItemsBitSet.clear();
 				clogItemsCount = null;
+				changeTracker.markAllDirty();
 				break;
 		}
 	}
 
+	@Subscribe
+	public void onVarbitChanged(VarbitChanged varbitChanged)
+	{
+		changeTracker.onVarpChanged(varbitChanged.getVarpId());
+	}
+
+	@Subscribe
+	public void onStatChanged(StatChanged statChanged)
+	{
+		changeTracker.markLevelsDirty();
+	}
+
 	@Subscribe
 	public void onScriptPreFired(ScriptPreFired preFired) {
 		if (syncButtonManager.isSyncAllowed() && preFired.getScriptId() == 4100) {
-			tickCollectionLogScriptFired = client.getTickCount();
-			if (collectionLogItemIdToBitsetIndex.isEmpty())
+			if (collectionLogIndex.isEmpty())
 			{
 				return;
 			}
-			clogItemsCount = collectionLogItemIdsFromCache.size();
 			Object[] args = preFired.getScriptEvent().getArguments();
 			int itemId = (int) args[1];
 			int idx = lookupCollectionLogItemIndex(itemId);
+			if (collectionLogSession != null)
+			{
+				collectionLogSession.onItem(itemId, idx, client.getTickCount());
+				if (collectionLogSession.isComplete(client.getTickCount()))
+				{
+					finishCollectionLogSession();
+				}
+				return;
+			}
+			// Browsing the log after a sync still teaches us about items, which go out with the regular uploads
+			clogItemsCount = collectionLogItemIdsFromCache.size();
 			// We should never return -1 under normal circumstances
 			if (idx != -1)
+			{
 				clogItemsBitSet.set(idx);
+				changeTracker.markCollectionLogDirty();
+			}
 		}
 	}
 
 	@Subscribe
 	public void onGameTick(GameTick gameTick) {
-		// Submit the collection log data two ticks after the first script prefires
-		if (tickCollectionLogScriptFired != -1 &&
-				tickCollectionLogScriptFired + 2 > client.getTickCount()) {
-			tickCollectionLogScriptFired = -1;
-			if (manifest == null) {
-				client.addChatMessage(ChatMessageType.CONSOLE, "WikiSync", "Failed to sync collection log. Try restarting the WikiSync plugin.", "WikiSync");
-				return;
-			}
-			scheduledExecutorService.execute(this::submitTask);
+		if (collectionLogSession == null)
+		{
+			return;
+		}
+		if (collectionLogSession.isComplete(client.getTickCount()))
+		{
+			finishCollectionLogSession();
+		}
+		else if (collectionLogSession.isAbandoned(client.getTickCount()))
+		{
+			log.debug("Collection log search never listed any items, giving up on the sync");
+			collectionLogSession = null;
 		}
 	}
 
+	/**
+	 * Called on the client thread when the sync button is clicked, right before the search is opened.
+	 */
+	private void onSyncButtonClicked()
+	{
+		if (manifest == null || collectionLogIndex.isEmpty())
+		{
+			client.addChatMessage(ChatMessageType.CONSOLE, "WikiSync", "Failed to sync collection log. Try restarting the WikiSync plugin.", "WikiSync");
+			return;
+		}
+		if (readPlan == null)
+		{
+			// The collection log is still captured, it goes out with the first upload once loading has finished
+			client.addChatMessage(ChatMessageType.CONSOLE, "WikiSync", "WikiSync is still loading game data ("
+				+ varbitsLoaded + "/" + manifest.varbits.length + " varbits). Your collection log will be synced once it"
+				+ " has finished.", "WikiSync");
+		}
+		// Clicking again while a search is still being listed starts over rather than uploading twice
+		collectionLogSession = new CollectionLogCaptureSession(client.getTickCount(), collectionLogItemIdsFromCache.size());
+	}
+
+	/**
+	 * Hands the collection log seen by the session over to the upload, exactly once per session.
+	 */
+	private void finishCollectionLogSession()
+	{
+		CollectionLogCaptureSession session = collectionLogSession;
+		collectionLogSession = null;
+		log.debug("Collection log sync saw {}/{} items", session.getItemsSeen(), collectionLogItemIdsFromCache.size());
+		clogItemsCount = collectionLogItemIdsFromCache.size();
+		clogItemsBitSet.or(session.getSlots());
+		changeTracker.markCollectionLogDirty();
+		scheduledExecutorService.execute(this::submitTask);
+	}
+
 	@Subscribe
 	public void onConfigChanged(ConfigChanged e) {
 		if (e.getGroup().equals(CONFIG_GROUP_KEY)){
@@ -270,7 +390,7 @@ public class WikiSyncPlugin extends Plugin
 	synchronized public void submitTask()
 	{
 		// TODO: do we want other GameStates?
-		if (client.getGameState() != GameState.LOGGED_IN || varbitCompositions.isEmpty())
+		if (client.getGameState() != GameState.LOGGED_IN || readPlan == null)
 		{
 			return;
 		}
@@ -284,17 +404,65 @@ public class WikiSyncPlugin extends Plugin
 		String username = client.getLocalPlayer().getName();
 		RuneScapeProfileType profileType = RuneScapeProfileType.getCurrent(client);
 		PlayerProfile profileKey = new PlayerProfile(username, profileType);
+		currentProfile = profileKey;
 
-		PlayerData newPlayerData = getPlayerData();
-		PlayerData oldPlayerData = playerDataMap.computeIfAbsent(profileKey, k -> new PlayerData());
+		// Whatever changes while an upload is in flight stays in the change tracker until the response is in, at
+		// which point it is diffed against the acknowledged state including the upload if it went through
+		if (inFlight.containsKey(profileKey))
+		{
+			return;
+		}
 
-		// Subtraction is done in place so newPlayerData becomes a map of only changed fields
-		subtract(newPlayerData, oldPlayerData);
-		if (newPlayerData.isEmpty())
+		// Nothing is captured while backing off, the change tracker keeps collecting what changed in the meantime
+		if (!retryScheduler.canAttempt())
 		{
+			recordHeldBackCollectionLog(profileKey);
 			return;
 		}
-		submitPlayerData(profileKey, newPlayerData, oldPlayerData);
+
+		// A profile we have not uploaded anything for yet needs all of its fields, not just the ones that changed
+		ChangeTracker.Changes changes = changeTracker.drain();
+		if (!playerDataMap.containsKey(profileKey))
+		{
+			changes = ChangeTracker.Changes.all(readPlan);
+		}
+		capturePlayerData(changes);
+		PlayerDataStore oldPlayerData = playerDataMap.computeIfAbsent(profileKey, this::loadAcknowledged);
+
+		// Only the fields that differ from what the server has acknowledged end up in the delta
+		PlayerDataStore delta = currentPlayerData.subtract(oldPlayerData, changes,
+			manifest.features.contains(PlayerDataStore.INCREMENTAL_COLLECTION_LOG_FEATURE));
+		delta = outbox.record(profileKey, changes, currentPlayerData, delta);
+		if (delta == null)
+		{
+			return;
+		}
+		submitPlayerData(profileKey, delta);
+	}
+
+	/**
+	 * Writes a collection log captured while uploads are held back to the outbox. Unlike the vars and levels, which
+	 * are read again after logging in, the collection log is only seen when the player opens it, so it would
+	 * otherwise be lost on logout.
+	 */
+	private void recordHeldBackCollectionLog(PlayerProfile profileKey)
+	{
+		if (!changeTracker.drainCollectionLog())
+		{
+			return;
+		}
+		ChangeTracker.Changes changes = ChangeTracker.Changes.collectionLogOnly();
+		capturePlayerData(changes);
+		PlayerDataStore oldPlayerData = playerDataMap.computeIfAbsent(profileKey, this::loadAcknowledged);
+		PlayerDataStore delta = currentPlayerData.subtract(oldPlayerData, changes,
+			manifest.features.contains(PlayerDataStore.INCREMENTAL_COLLECTION_LOG_FEATURE));
+		if (delta == null)
+		{
+			return;
+		}
+		// The next upload that goes out picks the collection log up from the outbox
+		outbox.record(profileKey, changes, currentPlayerData, delta);
+		outbox.persist(profileKey);
 	}
 
 	@Schedule(
@@ -306,93 +474,117 @@ public class WikiSyncPlugin extends Plugin
 	{
 		if (client.getGameState() == GameState.LOGGED_IN)
 		{
-			checkManifest();
+			checkManifest(true);
 		}
 	}
 
 
-	private int getVarbitValue(int varbitId)
+	/**
+	 * Reads the fields named in {@code changes} into {@link #currentPlayerData}.
+	 */
+	private void capturePlayerData(ChangeTracker.Changes changes)
 	{
-		VarbitComposition v = varbitCompositions.get(varbitId);
-		if (v == null)
+		BitSet groups = changes.getGroups();
+		for (int group = groups.nextSetBit(0); group >= 0; group = groups.nextSetBit(group + 1))
 		{
-			return -1;
+			int varpId = readPlan.getGroupVarp(group);
+			try {
+				readPlan.read(group, varpId == -1 ? -1 : client.getVarpValue(varpId), currentPlayerData);
+			} catch (ArrayIndexOutOfBoundsException e) {
+				log.debug("Unable to access varplayer {}: {}", varpId, e.toString());
+			}
 		}
-
-		int value = client.getVarpValue(v.getIndex());
-		int lsb = v.getLeastSignificantBit();
-		int msb = v.getMostSignificantBit();
-		int mask = (1 << ((msb - lsb) + 1)) - 1;
-		return (value >> lsb) & mask;
-	}
-
-	private PlayerData getPlayerData()
-	{
-		PlayerData out = new PlayerData();
-		for (int varbitId : manifest.varbits)
+		if (changes.isLevels())
 		{
-            try {
-			    out.varb.put(varbitId, getVarbitValue(varbitId));
-            } catch (ArrayIndexOutOfBoundsException e) {
-                log.debug("Unable to access varbit {}: {}", varbitId, e.toString());
-            }
+			for(Skill s : Skill.values())
+			{
+				currentPlayerData.setLevel(s, client.getRealSkillLevel(s));
+			}
 		}
-		for (int varpId : manifest.varps)
-		{
-            try {
-                out.varp.put(varpId, client.getVarpValue(varpId));
-            } catch (ArrayIndexOutOfBoundsException e) {
-                log.debug("Unable to access varplayer {}: {}", varpId, e.toString());
-            }
-        }
-		for(Skill s : Skill.values())
+		if (changes.isCollectionLog())
 		{
-			out.level.put(s.getName(), client.getRealSkillLevel(s));
+			currentPlayerData.setCollectionLog((BitSet) clogItemsBitSet.clone(), clogItemsCount);
 		}
-		out.collectionLogSlots = Base64.getEncoder().encodeToString(clogItemsBitSet.toByteArray());
-		out.collectionLogItemCount = clogItemsCount;
-		return out;
 	}
 
-	private void subtract(PlayerData newPlayerData, PlayerData oldPlayerData)
+	/**
+	 * Picks up what the server acknowledged for the profile in an earlier session, so that logging in only uploads
+	 * what actually changed since then.
+	 */
+	private PlayerDataStore loadAcknowledged(PlayerProfile profileKey)
 	{
-		oldPlayerData.varb.forEach(newPlayerData.varb::remove);
-		oldPlayerData.varp.forEach(newPlayerData.varp::remove);
-		oldPlayerData.level.forEach(newPlayerData.level::remove);
-		if (newPlayerData.collectionLogSlots.equals(oldPlayerData.collectionLogSlots))
-			newPlayerData.clearCollectionLog();
+		PlayerDataStore saved = playerDataFileStore.load(profileKey, PlayerDataFileStore.ACKNOWLEDGED, manifestIndex);
+		return saved != null ? saved : new PlayerDataStore(manifestIndex);
 	}
 
-	private void merge(PlayerData oldPlayerData, PlayerData delta)
+	/**
+	 * Folds a delta the server acknowledged into the profile's acknowledged state.
+	 */
+	synchronized private void commit(PlayerProfile profileKey, PlayerDataStore delta)
 	{
-		oldPlayerData.varb.putAll(delta.varb);
-		oldPlayerData.varp.putAll(delta.varp);
-		oldPlayerData.level.putAll(delta.level);
-		oldPlayerData.collectionLogSlots = delta.collectionLogSlots;
-		oldPlayerData.collectionLogItemCount = delta.collectionLogItemCount;
+		inFlight.remove(profileKey, delta);
+		outbox.acknowledged(profileKey, delta);
+		PlayerDataStore acknowledged = playerDataMap.get(profileKey);
+		if (acknowledged == null)
+		{
+			return;
+		}
+		// A new manifest may have been installed while the request was in flight
+		acknowledged.merge(delta.getIndex() == acknowledged.getIndex() ? delta : delta.remap(acknowledged.getIndex()));
+
+		PlayerDataStore snapshot = acknowledged.copy();
+		scheduledExecutorService.execute(() ->
+			playerDataFileStore.save(profileKey, PlayerDataFileStore.ACKNOWLEDGED, snapshot));
 	}
 
-	private void submitPlayerData(PlayerProfile profileKey, PlayerData delta, PlayerData old)
+	/**
+	 * Hands the fields of a delta the server did not acknowledge back to the next capture and the outbox.
+	 */
+	synchronized private void rollback(PlayerProfile profileKey, PlayerDataStore delta)
 	{
-		// If cyclesSinceSuccessfulCall is not a perfect square, we should not try to submit.
-		// This gives us quadratic backoff.
-		cyclesSinceSuccessfulCall += 1;
-		if (Math.pow((int) Math.sqrt(cyclesSinceSuccessfulCall), 2) != cyclesSinceSuccessfulCall)
+		inFlight.remove(profileKey, delta);
+		if (profileKey.equals(currentProfile))
 		{
-			return;
+			changeTracker.restore(delta);
 		}
+		outbox.persist(profileKey);
+	}
 
-		PlayerDataSubmission submission = new PlayerDataSubmission(
-				profileKey.getUsername(),
-				profileKey.getProfileType().name(),
-				delta
-		);
+	private void submitPlayerData(PlayerProfile profileKey, PlayerDataStore delta)
+	{
+		inFlight.put(profileKey, delta);
+		String username = profileKey.getUsername();
+		String profile = profileKey.getProfileType().name();
+		// The binary format is only used when the manifest the delta was built against says the server reads it
+		RequestBody body;
+		int size;
+		if (delta.getIndex().getManifest().features.contains(BinarySubmissionEncoder.MANIFEST_FEATURE))
+		{
+			byte[] encoded = BinarySubmissionEncoder.encode(username, profile, delta);
+			body = RequestBody.create(BINARY, encoded);
+			size = encoded.length;
+		}
+		else
+		{
+			PlayerData data = delta.toPlayerData();
+			body = new JsonRequestBody(submissionGson, new PlayerDataSubmission(username, profile, data));
+			size = data.estimateSize();
+		}
+		boolean compressed = config.compressUploads() && !gzipRejected && size >= GZIP_THRESHOLD_BYTES;
 
-		Request request = new Request.Builder()
-				.url(SUBMIT_URL)
-				.post(RequestBody.create(JSON, gson.toJson(submission)))
-				.build();
+		Request.Builder requestBuilder = new Request.Builder()
+				.url(SUBMIT_URL);
+		if (compressed)
+		{
+			requestBuilder.header("Content-Encoding", "gzip").post(new GzipRequestBody(body));
+		}
+		else
+		{
+			requestBuilder.post(body);
+		}
+		Request request = requestBuilder.build();
 
+		retryScheduler.onAttempt();
 		Call call = okHttpClient.newCall(request);
 		call.timeout().timeout(3, TimeUnit.SECONDS);
 		call.enqueue(new Callback()
@@ -401,6 +593,8 @@ public class WikiSyncPlugin extends Plugin
 			public void onFailure(Call call, IOException e)
 			{
 				log.debug("Failed to submit: ", e);
+				retryScheduler.onFailure(null);
+				rollback(profileKey, delta);
 			}
 
 			@Override
@@ -410,10 +604,19 @@ public class WikiSyncPlugin extends Plugin
 				{
 					if (!response.isSuccessful()) {
 						log.debug("Failed to submit: {}", response.code());
+						// A 400 is about what was uploaded, only a 415 says the server cannot read the encoding
+						if (compressed && response.code() == 415)
+						{
+							log.debug("Compressed upload was rejected, no longer compressing uploads");
+							gzipRejected = true;
+						}
+						retryScheduler.onFailure(response);
+						rollback(profileKey, delta);
 						return;
 					}
-					merge(old, delta);
-					cyclesSinceSuccessfulCall = 0;
+					commit(profileKey, delta);
+					retryScheduler.onSuccess();
+					replayOutbox();
 				}
 				finally
 				{
@@ -423,12 +626,47 @@ public class WikiSyncPlugin extends Plugin
 		});
 	}
 
-	private void checkManifest()
+	/**
+	 * Uploads what other profiles were left with in the outbox, one profile at a time. Every success moves on to
+	 * the next profile.
+	 */
+	synchronized private void replayOutbox()
 	{
-		Request request = new Request.Builder()
-				.url(MANIFEST_URL)
-				.build();
-		okHttpClient.newCall(request).enqueue(new Callback()
+		SubmissionOutbox.Replay replay = outbox.takeReplay(currentProfile, inFlight.keySet());
+		if (replay == null)
+		{
+			return;
+		}
+		log.debug("Replaying unacknowledged changes for {}", replay.getProfile());
+		playerDataMap.computeIfAbsent(replay.getProfile(), this::loadAcknowledged);
+		submitPlayerData(replay.getProfile(), replay.getDelta());
+	}
+
+	/**
+	 * @param acceptDelta Whether the server may answer with only what changed since the installed manifest.
+	 */
+	private void checkManifest(boolean acceptDelta)
+	{
+		Manifest base = manifest;
+		HttpUrl.Builder url = HttpUrl.parse(MANIFEST_URL).newBuilder();
+		if (acceptDelta && base != null)
+		{
+			url.addQueryParameter("since", String.valueOf(base.version));
+		}
+		// OkHttp asks for a gzip encoded response and transparently decodes it as long as we do not set
+		// Accept-Encoding ourselves, so the manifest is already downloaded compressed
+		Request.Builder requestBuilder = new Request.Builder()
+				.url(url.build());
+		ManifestCache.Entry current = manifestSource;
+		if (current != null && current.getEtag() != null)
+		{
+			requestBuilder.header("If-None-Match", current.getEtag());
+		}
+		if (current != null && current.getLastModified() != null)
+		{
+			requestBuilder.header("If-Modified-Since", current.getLastModified());
+		}
+		okHttpClient.newCall(requestBuilder.build()).enqueue(new Callback()
 		{
 			@Override
 			public void onFailure(Call call, IOException e)
@@ -437,22 +675,34 @@ public class WikiSyncPlugin extends Plugin
 			}
 
 			@Override
-			public void onResponse(Call call, Response response)
+			public void onResponse(Call call, Response response) throws IOException
 			{
 				try
 				{
+					if (response.code() == 304)
+					{
+						log.debug("Manifest has not changed");
+						return;
+					}
 					if (!response.isSuccessful())
 					{
 						log.debug("Failed to get manifest: {}", response.code());
 						return;
 					}
-					InputStream in = response.body().byteStream();
-					manifest = gson.fromJson(new InputStreamReader(in, StandardCharsets.UTF_8), Manifest.class);
-					populateCollectionLogItemIdToBitsetIndex();
-				}
-				catch (JsonParseException e)
-				{
-					log.debug("Failed to parse manifest: ", e);
+					ManifestCache.Entry entry = new ManifestCache.Entry(response.header("ETag"),
+						response.header("Last-Modified"), response.body().bytes());
+					// A server that does not send validators answers with the same document every time
+					if (current != null && Arrays.equals(current.getBody(), entry.getBody()))
+					{
+						manifestSource = entry;
+						manifestCache.save(entry);
+						return;
+					}
+					ManifestCache.Entry installed = parseAndInstallManifest(entry, base);
+					if (installed != null)
+					{
+						manifestCache.save(installed);
+					}
 				}
 				finally
 				{
@@ -462,43 +712,189 @@ public class WikiSyncPlugin extends Plugin
 		});
 	}
 
-	@Schedule(
-		period = 30,
-		unit = ChronoUnit.SECONDS,
-		asynchronous = true
-	)
-	public void scheduledEnsureDpsWsActive()
+	/**
+	 * Parses and installs a downloaded manifest, which may be a delta against {@code base}.
+	 * @return The full manifest that was installed, or null if nothing was installed.
+	 */
+	private ManifestCache.Entry parseAndInstallManifest(ManifestCache.Entry entry, Manifest base)
+	{
+		Manifest parsed;
+		try
+		{
+			JsonObject json = gson.fromJson(new String(entry.getBody(), StandardCharsets.UTF_8), JsonObject.class);
+			if (json == null)
+			{
+				log.debug("Failed to parse manifest: empty document");
+				return null;
+			}
+			if (!json.has("baseVersion"))
+			{
+				parsed = gson.fromJson(json, Manifest.class);
+			}
+			else
+			{
+				ManifestDelta delta = gson.fromJson(json, ManifestDelta.class);
+				if (base == null || delta.getBaseVersion() != base.version)
+				{
+					log.debug("Got a manifest delta from version {}, falling back to the full manifest", delta.getBaseVersion());
+					checkManifest(false);
+					return null;
+				}
+				if (delta.isEmpty(base))
+				{
+					log.debug("Manifest has not changed");
+					ManifestCache.Entry current = manifestSource;
+					if (current != null)
+					{
+						manifestSource = new ManifestCache.Entry(entry.getEtag(), entry.getLastModified(), current.getBody());
+					}
+					return null;
+				}
+				parsed = delta.applyTo(base);
+				log.debug("Applied manifest delta from version {} to {}", base.version, parsed.version);
+				// The cache always holds a full manifest
+				entry = new ManifestCache.Entry(entry.getEtag(), entry.getLastModified(),
+					gson.toJson(parsed).getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		catch (JsonParseException e)
+		{
+			log.debug("Failed to parse manifest: ", e);
+			return null;
+		}
+		installManifest(parsed);
+		manifestSource = entry;
+		rebuildCollectionLogIndex();
+		recheckCollectionLogItems();
+		return entry;
+	}
+
+	/**
+	 * Switches over to the slots of a new manifest, carrying over everything the server has already acknowledged.
+	 * Uploads pause until the compositions of the manifest's varbits have been loaded and the read plan compiled.
+	 */
+	synchronized private void installManifest(Manifest newManifest)
+	{
+		ManifestIndex index = new ManifestIndex(newManifest);
+		playerDataMap.replaceAll((profile, acknowledged) -> acknowledged.remap(index));
+		outbox.install(index);
+		currentPlayerData = new PlayerDataStore(index);
+		manifestIndex = index;
+		manifest = newManifest;
+		readPlan = null;
+		changeTracker.setReadPlan(null);
+		varbitCompositionLoader.load(newManifest.varbits, this::onVarbitLoadProgress, compositions ->
+			scheduledExecutorService.execute(() -> compileReadPlan(index, compositions)));
+	}
+
+	/**
+	 * Called on the client thread after every tick spent loading the manifest's varbits.
+	 */
+	private void onVarbitLoadProgress(int loaded)
 	{
-		log.debug("ensuring active!!");
-		if (webSocketStarted)
+		varbitsLoaded = loaded;
+		log.debug("Loaded {}/{} varbit compositions", loaded, manifest.varbits.length);
+	}
+
+	synchronized private void compileReadPlan(ManifestIndex index, Map<Integer, VarbitComposition> compositions)
+	{
+		// A newer manifest was installed while the compositions were loading
+		if (index != manifestIndex)
 		{
-			webSocketManager.ensureActive();
+			return;
 		}
+		readPlan = VarReadPlan.compile(index, compositions::get);
+		changeTracker.setReadPlan(readPlan);
+		log.debug("Compiled read plan with {} varp reads for {} varbits and {} varps",
+			readPlan.getGroupCount(), index.getVarbitCount(), index.getVarpCount());
 	}
 
-	private void populateCollectionLogItemIdToBitsetIndex()
+	/**
+	 * Builds the collection log index for the current manifest and cache items. The index is built on the calling
+	 * thread, only moving the bits that were already captured over to it happens on the client thread.
+	 */
+	synchronized private void rebuildCollectionLogIndex()
 	{
 		if (manifest == null)
 		{
 			log.debug("Manifest is not present so the collection log bitset index will not be updated");
 			return;
 		}
+		CollectionLogIndex newIndex = CollectionLogIndex.build(manifest.collections, collectionLogItemIdsFromCache);
+		if (newIndex.sameLayoutAs(collectionLogIndex))
+		{
+			return;
+		}
 		clientThread.invoke(() -> {
-			// Add missing keys in order to the map. Order is extremely important here so
-			// we get a stable map given the same cache data.
-			List<Integer> itemIdsMissingFromManifest = collectionLogItemIdsFromCache
-					.stream()
-					.filter((t) -> !manifest.collections.contains(t))
-					.sorted()
-					.collect(Collectors.toList());
-
-			int currentIndex = 0;
-			collectionLogItemIdToBitsetIndex.clear();
-			for (Integer itemId : manifest.collections)
-				collectionLogItemIdToBitsetIndex.put(itemId, currentIndex++);
-			for (Integer missingItemId : itemIdsMissingFromManifest) {
-				collectionLogItemIdToBitsetIndex.put(missingItemId, currentIndex++);
+			// Rebuilds are queued in the order they were built, so the last one to run is the newest
+			CollectionLogIndex oldIndex = collectionLogIndex;
+			if (!clogItemsBitSet.isEmpty())
+			{
+				BitSet remapped = newIndex.remap(clogItemsBitSet, oldIndex);
+				clogItemsBitSet.clear();
+				clogItemsBitSet.or(remapped);
+				changeTracker.markCollectionLogDirty();
+			}
+			if (collectionLogSession != null)
+			{
+				collectionLogSession.remap(newIndex, oldIndex);
 			}
+			collectionLogIndex = newIndex;
+		});
+	}
+
+	synchronized private void onCollectionLogItemsWalked(int collectionsHash)
+	{
+		collectionLogItemsWalkedFor = collectionsHash;
+		recheckCollectionLogItems();
+	}
+
+	/**
+	 * Walks the game cache again if the manifest's collections changed since the items were walked. The wiki updates
+	 * them after a game update adds, removes or moves collection log items, which does not always come with a new
+	 * revision.
+	 */
+	synchronized private void recheckCollectionLogItems()
+	{
+		if (manifest == null || collectionLogItemsWalkedFor == null
+			|| collectionLogItemsWalkedFor == manifest.collections.hashCode())
+		{
+			return;
+		}
+		log.debug("Collections in the manifest have changed, walking the game cache again");
+		collectionLogItemsWalkedFor = manifest.collections.hashCode();
+		parseCollectionLogItems();
+	}
+
+	/**
+	 * Walks the game cache for the collection log items on the client thread and saves them. Unless they are the
+	 * items already in use, the index is then rebuilt.
+	 */
+	private void parseCollectionLogItems()
+	{
+		clientThread.invokeLater(() -> {
+			if (client.getIndexConfig() == null || client.getGameState().ordinal() < GameState.LOGIN_SCREEN.ordinal())
+			{
+				log.debug("Failed to parse the collection log, state = {}", client.getGameState());
+				return false;
+			}
+			Manifest current = manifest;
+			CollectionLogItemCache.Entry walked = parseCacheForClog(current != null ? current.collections.hashCode() : 0);
+			boolean changed = !walked.getItemIds().equals(collectionLogItemIdsFromCache);
+			if (changed)
+			{
+				log.debug("Collection log in the game cache has changed, saving {} items", walked.getItemIds().size());
+				collectionLogItemIdsFromCache = walked.getItemIds();
+			}
+			scheduledExecutorService.execute(() -> {
+				collectionLogItemCache.save(walked);
+				if (changed)
+				{
+					rebuildCollectionLogIndex();
+				}
+				onCollectionLogItemsWalked(walked.getCollectionsHash());
+			});
+			return true;
 		});
 	}
 
@@ -507,8 +903,9 @@ public class WikiSyncPlugin extends Plugin
 	 * exist in the collection log. This can be diffed with the manifest to
 	 * determine the item ids that need to be appended to the end of the
 	 * bitset we send to the WikiSync server.
+	 * @param collectionsHash The hash of the manifest collections the walk is done for.
 	 */
-	private HashSet<Integer> parseCacheForClog()
+	private CollectionLogItemCache.Entry parseCacheForClog(int collectionsHash)
 	{
 		HashSet<Integer> itemIds = new HashSet<>();
 		// 2102 - Struct that contains the highest level tabs in the collection log (Bosses, Raids, etc)
@@ -544,7 +941,7 @@ public class WikiSyncPlugin extends Plugin
 		for (int goodItemId : replacements.getIntVals())
 			itemIds.add(goodItemId);
 
-		return itemIds;
+		return new CollectionLogItemCache.Entry(client.getRevision(), collectionsHash, Collections.unmodifiableSet(itemIds));
 	}
 
 }
@@ -1,14 +1,30 @@
 package com.andmcadams.wikisync.dps;
 
+import com.andmcadams.wikisync.dps.messages.BinaryMessageCodec;
+import com.andmcadams.wikisync.dps.messages.LoadoutSection;
+import com.andmcadams.wikisync.dps.messages.response.LoadoutChanged;
 import com.andmcadams.wikisync.dps.messages.response.UsernameChanged;
+import com.google.gson.Gson;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.function.ToIntFunction;
 import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 import net.runelite.api.Client;
 import net.runelite.api.EquipmentInventorySlot;
@@ -16,15 +32,21 @@ import net.runelite.api.GameState;
 import net.runelite.api.Item;
 import net.runelite.api.ItemContainer;
 import net.runelite.api.Player;
+import net.runelite.api.Prayer;
 import net.runelite.api.Skill;
 import net.runelite.api.events.GameStateChanged;
 import net.runelite.api.events.GameTick;
+import net.runelite.api.events.ItemContainerChanged;
+import net.runelite.api.events.StatChanged;
+import net.runelite.api.events.VarbitChanged;
 import net.runelite.api.gameval.InventoryID;
 import net.runelite.api.gameval.ItemID;
 import net.runelite.api.gameval.VarPlayerID;
 import net.runelite.api.gameval.VarbitID;
 import net.runelite.client.eventbus.EventBus;
 import net.runelite.client.eventbus.Subscribe;
+import net.runelite.client.game.ItemManager;
+import net.runelite.client.game.ItemStats;
 
 @Slf4j
 @Singleton
@@ -34,20 +56,210 @@ public class DpsDataFetcher
 
 	private final Client client;
 	private final EventBus eventBus;
+	private final Gson gson;
+	private final ItemManager itemManager;
 
 	@Getter
 	private String username;
 
+	// Whether anyone is subscribed to loadout changes
+	@Setter
+	private volatile boolean pushLoadouts;
+	// Whether anyone subscribed to loadout changes asked for the boosted levels as well
+	private volatile boolean pushBoosts;
+
+	/**
+	 * The loadout as of the last tick anything in it changed, with its shortlink data already serialized so that it
+	 * can be sent from any thread without touching the client. It is replaced as a whole, so a reader never pairs the
+	 * loadout of one tick with the shortlink data of another.
+	 */
+	@Value
+	public static class Snapshot
+	{
+		static final Snapshot EMPTY = new Snapshot(null, null, null);
+
+		// Built with the default sections, null while logged out
+		JsonObject loadout;
+		String shortlinkJson;
+		// The same data in the binary form of BinaryMessageCodec#loadouts
+		byte[] shortlinkBinary;
+	}
+
+	// Only written on the client thread, but read from any thread
+	@Getter
+	private volatile Snapshot snapshot = Snapshot.EMPTY;
+	// Whether the snapshot may be out of date
+	private volatile boolean loadoutDirty = true;
+	// Whether any calculator is connected. The snapshot is only kept up to date while one is
+	private volatile boolean connected;
+	// Set while the snapshot was not kept up to date, until it is next built
+	@Getter
+	private volatile boolean snapshotOutdated = true;
+	// The boosted levels as of the last tick they changed, only kept up to date while pushBoosts is set. Only
+	// written on the client thread, but read from any thread
+	@Getter
+	private volatile JsonObject boosts;
+	// Whether the boosts may be out of date
+	private boolean boostsDirty;
+	// The last levels seen for every skill, so that experience drops alone do not rebuild anything
+	private final int[] realLevels = new int[Skill.values().length];
+	private final int[] boostedLevels = new int[Skill.values().length];
+
 	@Subscribe
 	public void onGameTick(GameTick e)
 	{
 		checkUsername();
+		refreshLoadout();
 	}
 
 	@Subscribe
 	public void onGameStateChanged(GameStateChanged e)
 	{
 		checkUsername();
+		if (e.getGameState() != GameState.LOGGED_IN)
+		{
+			// The next loadout is sent in full, as it may belong to somebody else
+			reset();
+		}
+	}
+
+	/**
+	 * Forgets the current loadout so that it is rebuilt in full on the next tick, e.g. after game events may have
+	 * been missed. Must be called on the client thread.
+	 */
+	public void reset()
+	{
+		snapshot = Snapshot.EMPTY;
+		loadoutDirty = true;
+		boosts = null;
+		boostsDirty = true;
+		Arrays.fill(realLevels, -1);
+		Arrays.fill(boostedLevels, -1);
+	}
+
+	/**
+	 * Sets whether any subscriber asked for the boosted levels. Turning it on builds them right away, so it must be
+	 * called on the client thread, while turning it off may happen on any thread.
+	 */
+	public void setPushBoosts(boolean pushBoosts)
+	{
+		if (pushBoosts && !this.pushBoosts)
+		{
+			boosts = isLoggedIn() ? buildSkills(true) : null;
+			boostsDirty = false;
+		}
+		this.pushBoosts = pushBoosts;
+	}
+
+	private boolean isLoggedIn()
+	{
+		return client.getGameState() == GameState.LOGGED_IN && client.getLocalPlayer() != null;
+	}
+
+	/**
+	 * Called whenever the first calculator connects or the last one disconnects. Nothing is built while nobody is
+	 * connected, so the snapshot has to be brought up to date before the next connection is answered from it.
+	 */
+	public void setConnected(boolean connected)
+	{
+		this.connected = connected;
+		if (!connected)
+		{
+			snapshotOutdated = true;
+			loadoutDirty = true;
+		}
+	}
+
+	@Subscribe
+	public void onItemContainerChanged(ItemContainerChanged e)
+	{
+		if (e.getContainerId() == InventoryID.WORN)
+		{
+			loadoutDirty = true;
+		}
+	}
+
+	@Subscribe
+	public void onStatChanged(StatChanged e)
+	{
+		// The default sections only hold the real levels, boosts change far more often and are only built for
+		// subscribers that asked for them
+		int i = e.getSkill().ordinal();
+		if (realLevels[i] != e.getLevel())
+		{
+			realLevels[i] = e.getLevel();
+			loadoutDirty = true;
+		}
+		if (boostedLevels[i] != e.getBoostedLevel())
+		{
+			boostedLevels[i] = e.getBoostedLevel();
+			boostsDirty |= pushBoosts;
+		}
+	}
+
+	@Subscribe
+	public void onVarbitChanged(VarbitChanged e)
+	{
+		switch (e.getVarbitId())
+		{
+			case VarbitID.INSIDE_WILDERNESS:
+			case VarbitID.KANDARIN_DIARY_HARD_COMPLETE:
+				loadoutDirty = true;
+				return;
+		}
+		switch (e.getVarpId())
+		{
+			case VarPlayerID.SLAYER_COUNT:
+			case VarPlayerID.MAGEARENA_CHARGE:
+				loadoutDirty = true;
+				return;
+		}
+	}
+
+	/**
+	 * Rebuilds the loadout if anything in it changed since it was last built and a calculator is connected,
+	 * publishes the new shortlink data, and posts a {@link LoadoutChanged} with the sections that differ if anyone
+	 * is subscribed. The boosts are rebuilt and included the same way while anyone asked for them. Changes are
+	 * coalesced, so at most one is posted per call. Must be called on the client thread.
+	 */
+	public void refreshLoadout()
+	{
+		if ((!loadoutDirty && !boostsDirty) || !connected || !isLoggedIn())
+		{
+			return;
+		}
+
+		JsonObject changed = new JsonObject();
+		if (loadoutDirty)
+		{
+			loadoutDirty = false;
+			snapshotOutdated = false;
+			JsonObject loadout = buildLoadout(LoadoutSection.DEFAULT);
+			JsonObject previous = snapshot.getLoadout();
+			snapshot = new Snapshot(loadout, gson.toJson(buildShortlinkData(Collections.singletonList(loadout))),
+				BinaryMessageCodec.loadouts(Collections.singletonList(loadout)));
+			for (Map.Entry<String, JsonElement> section : loadout.entrySet())
+			{
+				if (previous == null || !section.getValue().equals(previous.get(section.getKey())))
+				{
+					changed.add(section.getKey(), section.getValue());
+				}
+			}
+		}
+		if (boostsDirty)
+		{
+			boostsDirty = false;
+			JsonObject previous = boosts;
+			boosts = buildSkills(true);
+			if (!boosts.equals(previous))
+			{
+				changed.add(LoadoutSection.BOOSTS.getKey(), boosts);
+			}
+		}
+		if (pushLoadouts && changed.size() > 0)
+		{
+			eventBus.post(new LoadoutChanged(changed));
+		}
 	}
 
 	private void checkUsername()
@@ -99,17 +311,151 @@ public class DpsDataFetcher
 
 	// TODO: Delete this once the Wiki plugin service exists. See https://github.com/runelite/runelite/pull/17524
 	// This is directly copied from https://github.com/runelite/runelite/pull/17524/files#diff-141a15aba5d017de9818b5d39722f85f95b330ef96f8eb06103a947c1094b905
-	public JsonObject buildShortlinkData()
+	public static JsonObject buildShortlinkData(List<JsonObject> loadouts)
 	{
 		JsonObject j = new JsonObject();
 
 		// Build the player's loadout data
-		JsonArray loadouts = new JsonArray();
-		ItemContainer eqContainer = client.getItemContainer(InventoryID.WORN);
+		JsonArray l = new JsonArray();
+		for (JsonObject loadout : loadouts)
+		{
+			l.add(loadout);
+		}
+		j.add("loadouts", l);
+
+		return j;
+	}
+
+	/**
+	 * @return A copy of the loadout holding only the given sections.
+	 */
+	public static JsonObject project(JsonObject loadout, Set<LoadoutSection> sections)
+	{
+		JsonObject projected = new JsonObject();
+		for (LoadoutSection section : sections)
+		{
+			JsonElement value = loadout.get(section.getKey());
+			if (value != null)
+			{
+				projected.add(section.getKey(), value);
+			}
+		}
+		return projected;
+	}
 
+	/**
+	 * Builds the requested sections of the loadout, followed by a switch loadout for every weapon in the inventory
+	 * if {@link LoadoutSection#SWITCHES} is asked for. Nothing that was not asked for is computed. Must be called on
+	 * the client thread.
+	 * @return The loadouts, or an empty list while logged out.
+	 */
+	public List<JsonObject> buildLoadouts(Set<LoadoutSection> sections)
+	{
+		if (client.getGameState() != GameState.LOGGED_IN || client.getLocalPlayer() == null)
+		{
+			return Collections.emptyList();
+		}
+		JsonObject loadout = buildLoadout(sections);
+		if (!sections.contains(LoadoutSection.SWITCHES))
+		{
+			return Collections.singletonList(loadout);
+		}
+
+		List<JsonObject> loadouts = new ArrayList<>();
+		loadouts.add(loadout);
+		JsonObject equipment = loadout.has("equipment")
+			? loadout.getAsJsonObject("equipment")
+			: buildEquipment();
+		ItemContainer inventory = client.getItemContainer(InventoryID.INV);
+		if (inventory == null)
+		{
+			return loadouts;
+		}
+		Set<Integer> seen = new HashSet<>();
+		for (Item item : inventory.getItems())
+		{
+			ItemStats stats = item.getId() == -1 ? null : itemManager.getItemStats(item.getId());
+			if (stats == null || !stats.isEquipable() || stats.getEquipment() == null
+				|| stats.getEquipment().getSlot() != EquipmentInventorySlot.WEAPON.getSlotIdx() || !seen.add(item.getId()))
+			{
+				continue;
+			}
+			JsonObject switched = equipment.deepCopy();
+			switched.add("weapon", itemObject(item.getId()));
+			if (stats.getEquipment().isTwoHanded())
+			{
+				switched.add("shield", JsonNull.INSTANCE);
+			}
+			JsonObject switchLoadout = loadout.deepCopy();
+			switchLoadout.add("equipment", switched);
+			loadouts.add(switchLoadout);
+		}
+		return loadouts;
+	}
+
+	private JsonObject buildLoadout(Set<LoadoutSection> sections)
+	{
 		JsonObject l = new JsonObject();
-		JsonObject eq = new JsonObject();
+		if (sections.contains(LoadoutSection.EQUIPMENT))
+		{
+			l.add("equipment", buildEquipment());
+		}
+		if (sections.contains(LoadoutSection.SKILLS))
+		{
+			l.add("skills", buildSkills(false));
+		}
+		if (sections.contains(LoadoutSection.BUFFS))
+		{
+			JsonObject buffs = new JsonObject();
+			buffs.addProperty("inWilderness", client.getVarbitValue(VarbitID.INSIDE_WILDERNESS) == 1);
+			buffs.addProperty("kandarinDiary", client.getVarbitValue(VarbitID.KANDARIN_DIARY_HARD_COMPLETE) == 1);
+			buffs.addProperty("onSlayerTask", client.getVarpValue(VarPlayerID.SLAYER_COUNT) > 0);
+			buffs.addProperty("chargeSpell", client.getVarpValue(VarPlayerID.MAGEARENA_CHARGE) > 0);
+			l.add("buffs", buffs);
+		}
+		if (sections.contains(LoadoutSection.NAME))
+		{
+			l.addProperty("name", client.getLocalPlayer().getName());
+		}
+		if (sections.contains(LoadoutSection.BOOSTS))
+		{
+			l.add("boosts", buildSkills(true));
+		}
+		if (sections.contains(LoadoutSection.PRAYERS))
+		{
+			JsonArray prayers = new JsonArray();
+			for (Prayer prayer : Prayer.values())
+			{
+				if (client.isPrayerActive(prayer))
+				{
+					prayers.add(prayer.name());
+				}
+			}
+			l.add("prayers", prayers);
+		}
+		if (sections.contains(LoadoutSection.INVENTORY))
+		{
+			JsonArray items = new JsonArray();
+			ItemContainer inventory = client.getItemContainer(InventoryID.INV);
+			if (inventory != null)
+			{
+				for (Item item : inventory.getItems())
+				{
+					if (item.getId() != -1)
+					{
+						items.add(itemObject(item.getId()));
+					}
+				}
+			}
+			l.add("inventory", items);
+		}
+		return l;
+	}
 
+	private JsonObject buildEquipment()
+	{
+		ItemContainer eqContainer = client.getItemContainer(InventoryID.WORN);
+		JsonObject eq = new JsonObject();
 		eq.add("ammo", createEquipmentObject(eqContainer, EquipmentInventorySlot.AMMO));
 		eq.add("body", createEquipmentObject(eqContainer, EquipmentInventorySlot.BODY));
 		eq.add("cape", createEquipmentObject(eqContainer, EquipmentInventorySlot.CAPE));
@@ -121,32 +467,29 @@ public class DpsDataFetcher
 		eq.add("ring", createEquipmentObject(eqContainer, EquipmentInventorySlot.RING));
 		eq.add("shield", createEquipmentObject(eqContainer, EquipmentInventorySlot.SHIELD));
 		eq.add("weapon", createEquipmentObject(eqContainer, EquipmentInventorySlot.WEAPON));
-		l.add("equipment", eq);
+		return eq;
+	}
 
+	private JsonObject buildSkills(boolean boosted)
+	{
+		ToIntFunction<Skill> level = boosted ? client::getBoostedSkillLevel : client::getRealSkillLevel;
 		JsonObject skills = new JsonObject();
-		skills.addProperty("atk", client.getRealSkillLevel(Skill.ATTACK));
-		skills.addProperty("def", client.getRealSkillLevel(Skill.DEFENCE));
-		skills.addProperty("hp", client.getRealSkillLevel(Skill.HITPOINTS));
-		skills.addProperty("magic", client.getRealSkillLevel(Skill.MAGIC));
-		skills.addProperty("mining", client.getRealSkillLevel(Skill.MINING));
-		skills.addProperty("prayer", client.getRealSkillLevel(Skill.PRAYER));
-		skills.addProperty("ranged", client.getRealSkillLevel(Skill.RANGED));
-		skills.addProperty("str", client.getRealSkillLevel(Skill.STRENGTH));
-		l.add("skills", skills);
-
-		JsonObject buffs = new JsonObject();
-		buffs.addProperty("inWilderness", client.getVarbitValue(VarbitID.INSIDE_WILDERNESS) == 1);
-		buffs.addProperty("kandarinDiary", client.getVarbitValue(VarbitID.KANDARIN_DIARY_HARD_COMPLETE) == 1);
-		buffs.addProperty("onSlayerTask", client.getVarpValue(VarPlayerID.SLAYER_COUNT) > 0);
-		buffs.addProperty("chargeSpell", client.getVarpValue(VarPlayerID.MAGEARENA_CHARGE) > 0);
-		l.add("buffs", buffs);
-
-		l.addProperty("name", client.getLocalPlayer().getName());
-
-		loadouts.add(l);
-		j.add("loadouts", loadouts);
+		skills.addProperty("atk", level.applyAsInt(Skill.ATTACK));
+		skills.addProperty("def", level.applyAsInt(Skill.DEFENCE));
+		skills.addProperty("hp", level.applyAsInt(Skill.HITPOINTS));
+		skills.addProperty("magic", level.applyAsInt(Skill.MAGIC));
+		skills.addProperty("mining", level.applyAsInt(Skill.MINING));
+		skills.addProperty("prayer", level.applyAsInt(Skill.PRAYER));
+		skills.addProperty("ranged", level.applyAsInt(Skill.RANGED));
+		skills.addProperty("str", level.applyAsInt(Skill.STRENGTH));
+		return skills;
+	}
 
-		return j;
+	private static JsonObject itemObject(int id)
+	{
+		JsonObject o = new JsonObject();
+		o.addProperty("id", id);
+		return o;
 	}
 
 }
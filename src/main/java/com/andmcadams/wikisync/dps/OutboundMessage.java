@@ -0,0 +1,104 @@
+package com.andmcadams.wikisync.dps;
+
+import com.andmcadams.wikisync.dps.messages.BinaryMessageCodec;
+import com.google.common.base.Suppliers;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import lombok.Getter;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.framing.Framedata;
+
+/**
+ * A message that can be queued for any number of connections. It is serialized at most once per format, as JSON
+ * text or in the binary form of {@link BinaryMessageCodec}, and only once a connection that needs that format is
+ * about to send it. The frames are also shared, and are created once per draft the same way
+ * {@link org.java_websocket.server.WebSocketServer#broadcast} does it, except for compressed connections. Those
+ * compress frames in place with their own deflate context, so they each get frames of their own.
+ */
+class OutboundMessage
+{
+	/**
+	 * Messages with the same key describe the same piece of state, so a newer one may take the place of an older
+	 * one that has not been sent yet. Null if every message has to be delivered.
+	 */
+	@Getter
+	private final String coalesceKey;
+
+	private final Supplier<String> text;
+	private final Supplier<byte[]> binary;
+	private final Supplier<OutboundMessage> superseding;
+
+	// Only touched on the sender thread
+	private final Map<Draft, List<Framedata>> frames = new HashMap<>();
+
+	OutboundMessage(Supplier<String> text, Supplier<byte[]> binary)
+	{
+		this(text, binary, null, null);
+	}
+
+	/**
+	 * @param superseding The message to queue in place of an unsent message with the same key, if this message
+	 *                    alone does not carry everything the older one did. Null if this message does.
+	 */
+	OutboundMessage(Supplier<String> text, Supplier<byte[]> binary, String coalesceKey, Supplier<OutboundMessage> superseding)
+	{
+		this.text = Suppliers.memoize(text::get);
+		this.binary = Suppliers.memoize(binary::get);
+		this.coalesceKey = coalesceKey;
+		this.superseding = superseding;
+	}
+
+	/**
+	 * Combines the responses to a batch of requests into one message: a JSON array of the responses, or the binary
+	 * responses one after another.
+	 */
+	static OutboundMessage batch(List<OutboundMessage> responses)
+	{
+		return new OutboundMessage(
+			() -> responses.stream().map(r -> r.text.get()).collect(Collectors.joining(",", "[", "]")),
+			() -> {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				for (OutboundMessage response : responses)
+				{
+					byte[] binary = response.binary.get();
+					out.write(binary, 0, binary.length);
+				}
+				return out.toByteArray();
+			});
+	}
+
+	OutboundMessage supersede()
+	{
+		return superseding == null ? this : superseding.get();
+	}
+
+	List<Framedata> getFrames(Draft draft)
+	{
+		if (draft instanceof Draft_6455 && ((Draft_6455) draft).getExtension() instanceof PerMessageDeflateExtension)
+		{
+			return createFrames(draft);
+		}
+		return frames.computeIfAbsent(draft, this::createFrames);
+	}
+
+	private List<Framedata> createFrames(Draft draft)
+	{
+		return isBinary(draft)
+			? draft.createFrames(ByteBuffer.wrap(binary.get()), false)
+			: draft.createFrames(text.get(), false);
+	}
+
+	static boolean isBinary(Draft draft)
+	{
+		return draft instanceof Draft_6455
+			&& ((Draft_6455) draft).getProtocol() != null
+			&& BinaryMessageCodec.PROTOCOL.equals(((Draft_6455) draft).getProtocol().getProvidedProtocol());
+	}
+}
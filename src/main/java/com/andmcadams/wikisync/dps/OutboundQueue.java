@@ -0,0 +1,97 @@
+package com.andmcadams.wikisync.dps;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * The messages waiting to be sent to one connection. The queue is bounded so that a browser tab that stops reading
+ * cannot make us buffer without limit: messages with a coalesce key replace an unsent message with the same key,
+ * and anything else is dropped once the queue is full. The queue also counts what happened to the messages offered
+ * to it, which is logged when the connection closes.
+ */
+class OutboundQueue
+{
+	static final int CAPACITY = 32;
+
+	enum Result
+	{
+		QUEUED,
+		COALESCED,
+		DROPPED
+	}
+
+	private final ArrayDeque<OutboundMessage> messages = new ArrayDeque<>();
+	private boolean drainScheduled;
+	private long queued;
+	private long coalesced;
+	private long dropped;
+	private long sent;
+
+	synchronized Result offer(OutboundMessage message)
+	{
+		if (message.getCoalesceKey() != null)
+		{
+			for (Iterator<OutboundMessage> it = messages.iterator(); it.hasNext(); )
+			{
+				if (message.getCoalesceKey().equals(it.next().getCoalesceKey()))
+				{
+					it.remove();
+					messages.addLast(message.supersede());
+					coalesced++;
+					return Result.COALESCED;
+				}
+			}
+		}
+		if (messages.size() >= CAPACITY)
+		{
+			dropped++;
+			return Result.DROPPED;
+		}
+		messages.addLast(message);
+		queued++;
+		return Result.QUEUED;
+	}
+
+	/**
+	 * @return The next message to send, which is counted as sent, or null if the queue is empty, in which case the
+	 * caller no longer counts as draining it.
+	 */
+	synchronized OutboundMessage poll()
+	{
+		OutboundMessage message = messages.pollFirst();
+		if (message == null)
+		{
+			drainScheduled = false;
+		}
+		else
+		{
+			sent++;
+		}
+		return message;
+	}
+
+	/**
+	 * @return Whether the caller should schedule a drain, i.e. whether none was scheduled yet.
+	 */
+	synchronized boolean scheduleDrain()
+	{
+		if (drainScheduled)
+		{
+			return false;
+		}
+		drainScheduled = true;
+		return true;
+	}
+
+	synchronized void clear()
+	{
+		dropped += messages.size();
+		messages.clear();
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "queued=" + queued + " coalesced=" + coalesced + " dropped=" + dropped + " sent=" + sent;
+	}
+}
@@ -1,24 +1,43 @@
 package com.andmcadams.wikisync.dps;
 
+import com.andmcadams.wikisync.WebSocketPortStore;
+import com.andmcadams.wikisync.dps.messages.BinaryMessageCodec;
+import com.andmcadams.wikisync.dps.messages.LoadoutSection;
+import com.andmcadams.wikisync.dps.messages.MessageTypeAdapterFactory;
 import com.andmcadams.wikisync.dps.messages.response.GetPlayer;
+import com.andmcadams.wikisync.dps.messages.response.LoadoutChanged;
 import com.andmcadams.wikisync.dps.messages.Request;
+import com.andmcadams.wikisync.dps.messages.RequestType;
 import com.andmcadams.wikisync.dps.messages.response.UsernameChanged;
 import com.andmcadams.wikisync.dps.ws.WSHandler;
 import com.andmcadams.wikisync.dps.ws.WSWebsocketServer;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Singleton;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import net.runelite.client.callback.ClientThread;
 import net.runelite.client.eventbus.Subscribe;
@@ -27,69 +46,299 @@ import org.java_websocket.handshake.ClientHandshake;
 
 @Slf4j
 @Singleton
-@RequiredArgsConstructor(onConstructor_ = @Inject)
 public class WebSocketManager implements WSHandler
 {
 
 	private final static int PORT_MIN = 37767;
 	private final static int PORT_MAX = 37776;
 
+	// How long to wait before checking again whether a connection has sent everything it was given
+	private final static long DRAIN_RETRY_MILLIS = 50;
+
 	private final static Set<String> ALLOWED_ORIGIN_HOSTS = ImmutableSet.of("localhost", "dps.osrs.wiki", "tools.runescape.wiki");
 
-	private final AtomicBoolean serverActive = new AtomicBoolean(false);
+	// How long to wait before probing again when every port is taken
+	private final static long RETRY_DELAY_MIN_MILLIS = 1000;
+	private final static long RETRY_DELAY_MAX_MILLIS = 30_000;
+	// How long a server has to stay up before an error from it restarts it without waiting out the retry delay
+	private final static long STABLE_UPTIME_MILLIS = 60_000;
+
+	enum State
+	{
+		STOPPED,
+		// A server was started and is binding its port
+		STARTING,
+		RUNNING,
+		// Every port was taken or the running server failed, a retry is scheduled
+		WAITING,
+	}
 
+	// The injected Gson instance with the message adapters registered on it
 	private final Gson gson;
 	private final DpsDataFetcher dpsDataFetcher;
+	private final WebSocketPortStore portStore;
 
-	private int nextPort;
+	// The server's lifecycle is only ever changed on the sender thread, so events from the server never race
+	// with each other or with starting and stopping it
+	private State state = State.STOPPED;
+	private volatile WSWebsocketServer server;
+	// Ports that looked free but then failed to bind, skipped until a server starts or the next retry
+	private final Set<Integer> failedPorts = new HashSet<>();
+	private long retryDelayMillis = RETRY_DELAY_MIN_MILLIS;
+	private ScheduledFuture<?> retry;
+	private long startedAt;
+	// The port the last server started on, saved to disk so that it is tried first after the client restarts
+	private int lastPort = -1;
 
-	private WSWebsocketServer server;
+	// Connections that were let in by onOpen and are still open
+	private final Set<WebSocket> clients = ConcurrentHashMap.newKeySet();
+	// Connections that asked for loadout changes to be pushed to them
+	private final Set<WebSocket> subscribers = ConcurrentHashMap.newKeySet();
+	// The subscribers that also asked for the boosted levels
+	private final Set<WebSocket> boostSubscribers = ConcurrentHashMap.newKeySet();
 
 	@Inject
 	private ClientThread clientThread;
 
-	private static final ExecutorService executorService = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("wikisync-dps-manager-%d").build());
+	// Serializes messages and hands frames to the connections. Nothing run on it waits on a connection
+	private static final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("wikisync-dps-manager-%d").build());
+
+	@Inject
+	private WebSocketManager(Gson gson, DpsDataFetcher dpsDataFetcher, WebSocketPortStore portStore)
+	{
+		this.gson = gson.newBuilder()
+			.registerTypeAdapterFactory(new MessageTypeAdapterFactory())
+			.create();
+		this.dpsDataFetcher = dpsDataFetcher;
+		this.portStore = portStore;
+	}
 
 	public void startUp()
 	{
-		this.nextPort = PORT_MIN;
-		// Just in case we are in a bad state, let's try to stop any active server.
-		stopServer();
-		ensureActive();
+		executorService.execute(() -> {
+			// Just in case we are in a bad state, let's try to stop any active server.
+			cancelRetry();
+			stopServer();
+			// Game events were not being tracked while the server was off
+			clientThread.invokeLater(dpsDataFetcher::reset);
+			retryDelayMillis = RETRY_DELAY_MIN_MILLIS;
+			failedPorts.clear();
+			if (lastPort == -1)
+			{
+				lastPort = portStore.load();
+			}
+			startServer();
+		});
 	}
 
 	public void shutDown()
 	{
-		log.debug("Shutting down WikiSync Websocket Manager. Server active = {}", serverActive.getPlain());
-		stopServer();
+		executorService.execute(() -> {
+			log.debug("Shutting down WikiSync Websocket Manager. State = {}", state);
+			state = State.STOPPED;
+			cancelRetry();
+			stopServer();
+		});
 	}
 
 	/**
-	 * If a server is not currently running or starting, then try to start a new server. If a server is currently
-	 * running or starting, then do nothing. Then method is meant to be called regularly, so it will happily do nothing
-	 * on any specific run.
+	 * Starts a server on the first port that looks free, trying the port that worked last time first. Every port in
+	 * the range is probed by briefly binding it, which takes far less time than starting a server on it and waiting
+	 * for it to fail. If none is free, tries again after a delay that grows with every attempt.
 	 */
-	public void ensureActive()
+	private void startServer()
+	{
+		int port = findFreePort();
+		if (port == -1)
+		{
+			log.debug("No free port for the WebSocket server, trying again in {}ms", retryDelayMillis);
+			scheduleRetry();
+			return;
+		}
+		state = State.STARTING;
+		server = new WSWebsocketServer(port, this);
+		server.start();
+		log.debug("WSWSS attempting to start at: {}", server.getAddress());
+	}
+
+	private void scheduleRetry()
 	{
-		if (!serverActive.compareAndExchange(false, true))
+		state = State.WAITING;
+		retry = executorService.schedule(() -> {
+			retry = null;
+			failedPorts.clear();
+			startServer();
+		}, retryDelayMillis, TimeUnit.MILLISECONDS);
+		retryDelayMillis = Math.min(retryDelayMillis * 2, RETRY_DELAY_MAX_MILLIS);
+	}
+
+	private int findFreePort()
+	{
+		if (lastPort >= PORT_MIN && lastPort <= PORT_MAX && !failedPorts.contains(lastPort) && isFree(lastPort))
+		{
+			return lastPort;
+		}
+		for (int port = PORT_MIN; port <= PORT_MAX; port++)
 		{
-			this.server = new WSWebsocketServer(this.nextPort++, this);
-			this.server.start();
-			log.debug("WSWSS attempting to start at: {}", this.server.getAddress());
-			if (this.nextPort > PORT_MAX) {
-				this.nextPort = PORT_MIN;
+			if (port != lastPort && !failedPorts.contains(port) && isFree(port))
+			{
+				return port;
 			}
 		}
+		return -1;
+	}
+
+	private static boolean isFree(int port)
+	{
+		try (ServerSocket socket = new ServerSocket())
+		{
+			socket.bind(new InetSocketAddress("127.0.0.1", port));
+			return true;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	private void cancelRetry()
+	{
+		if (retry != null)
+		{
+			retry.cancel(false);
+			retry = null;
+		}
 	}
 
 	@Subscribe
 	public void onUsernameChanged(UsernameChanged e)
 	{
-		if (serverActive.get())
+		WSWebsocketServer server = this.server;
+		if (server != null)
+		{
+			broadcast(server.getConnections(), usernameChanged(e));
+		}
+	}
+
+	@Subscribe
+	public void onLoadoutChanged(LoadoutChanged e)
+	{
+		if (subscribers.isEmpty())
+		{
+			return;
+		}
+		// A connection that has not been sent the previous change yet needs every section instead of just this diff
+		JsonObject loadout = dpsDataFetcher.getSnapshot().getLoadout();
+		JsonObject boosts = dpsDataFetcher.getBoosts();
+		String boostsKey = LoadoutSection.BOOSTS.getKey();
+		List<WebSocket> withBoosts = new ArrayList<>();
+		List<WebSocket> withoutBoosts = new ArrayList<>();
+		for (WebSocket conn : subscribers)
+		{
+			(boostSubscribers.contains(conn) ? withBoosts : withoutBoosts).add(conn);
+		}
+		if (!withBoosts.isEmpty())
+		{
+			broadcast(withBoosts, loadoutChanged(e, Suppliers.memoize(() ->
+				loadoutChanged(new LoadoutChanged(withBoosts(loadout, boosts)), null))));
+		}
+		JsonObject payload = e.getPayload();
+		if (payload.has(boostsKey))
+		{
+			payload = payload.deepCopy();
+			payload.remove(boostsKey);
+		}
+		if (!withoutBoosts.isEmpty() && payload.size() > 0)
+		{
+			broadcast(withoutBoosts, loadoutChanged(new LoadoutChanged(payload), Suppliers.memoize(() ->
+				loadoutChanged(new LoadoutChanged(loadout), null))));
+		}
+	}
+
+	/**
+	 * @return The loadout with the boosts added to it, or the loadout itself if there are none.
+	 */
+	private static JsonObject withBoosts(JsonObject loadout, @Nullable JsonObject boosts)
+	{
+		if (loadout == null || boosts == null)
+		{
+			return loadout;
+		}
+		JsonObject copy = loadout.deepCopy();
+		copy.add(LoadoutSection.BOOSTS.getKey(), boosts);
+		return copy;
+	}
+
+	private OutboundMessage getPlayer(int sequenceId, List<JsonObject> loadouts)
+	{
+		return new OutboundMessage(
+			() -> gson.toJson(new GetPlayer(sequenceId, loadouts.isEmpty() ? null : gson.toJson(DpsDataFetcher.buildShortlinkData(loadouts)))),
+			() -> BinaryMessageCodec.getPlayer(sequenceId, loadouts.isEmpty() ? null : BinaryMessageCodec.loadouts(loadouts)));
+	}
+
+	private OutboundMessage usernameChanged(UsernameChanged e)
+	{
+		return new OutboundMessage(() -> gson.toJson(e), () -> BinaryMessageCodec.usernameChanged(e), "UsernameChanged", null);
+	}
+
+	private OutboundMessage loadoutChanged(LoadoutChanged e, Supplier<OutboundMessage> superseding)
+	{
+		return new OutboundMessage(() -> gson.toJson(e), () -> BinaryMessageCodec.loadoutChanged(e), "LoadoutChanged", superseding);
+	}
+
+	/**
+	 * Queues a message for every target. It is serialized on the sender thread, once for each format in use.
+	 */
+	private void broadcast(Collection<WebSocket> targets, OutboundMessage message)
+	{
+		for (WebSocket conn : targets)
 		{
-			executorService.submit(()->{
-				this.server.broadcast(gson.toJson(e));
-			});
+			send(conn, message);
+		}
+	}
+
+	/**
+	 * Queues a message for a connection, which is sent as soon as everything before it has gone out.
+	 */
+	private void send(WebSocket conn, OutboundMessage message)
+	{
+		OutboundQueue queue = conn.getAttachment();
+		if (queue == null)
+		{
+			// The connection was turned away in onOpen
+			return;
+		}
+		if (queue.offer(message) == OutboundQueue.Result.DROPPED)
+		{
+			log.debug("Dropped a message for slow connection {}", conn.getRemoteSocketAddress());
+		}
+		if (queue.scheduleDrain())
+		{
+			executorService.execute(() -> drain(conn, queue));
+		}
+	}
+
+	/**
+	 * Hands everything queued for the connection over to it, unless it is still busy writing what it was given
+	 * last time, in which case it is checked again shortly. This way a tab that stops reading only fills its own
+	 * queue, and never holds up the sender thread or the other connections.
+	 */
+	private void drain(WebSocket conn, OutboundQueue queue)
+	{
+		if (!conn.isOpen())
+		{
+			queue.clear();
+			queue.poll();
+			return;
+		}
+		if (conn.hasBufferedData())
+		{
+			executorService.schedule(() -> drain(conn, queue), DRAIN_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+			return;
+		}
+		for (OutboundMessage message = queue.poll(); message != null; message = queue.poll())
+		{
+			conn.sendFrame(message.getFrames(conn.getDraft()));
 		}
 	}
 
@@ -124,53 +373,276 @@ public class WebSocketManager implements WSHandler
 		}
 
 		// This connection appears to be valid!
-		conn.send(gson.toJson(new UsernameChanged(dpsDataFetcher.getUsername())));
+		conn.setAttachment(new OutboundQueue());
+		connected(conn);
+		send(conn, usernameChanged(new UsernameChanged(dpsDataFetcher.getUsername())));
 	}
 
 	@Override
 	public void onMessage(WebSocket conn, String message)
 	{
-		Request request = gson.fromJson(message, Request.class);
+		boolean batch = isBatch(message);
+		handleRequests(conn, readRequests(gson, message, batch), batch);
+	}
+
+	/**
+	 * Reads the requests of a text frame. A null where a request should be is skipped, so the rest of a batch is
+	 * still answered.
+	 */
+	static List<Request> readRequests(Gson gson, String message, boolean batch)
+	{
+		List<Request> requests = new ArrayList<>();
+		if (batch)
+		{
+			Request[] parsed = gson.fromJson(message, Request[].class);
+			for (Request request : parsed)
+			{
+				if (request != null)
+				{
+					requests.add(request);
+				}
+			}
+		}
+		else
+		{
+			Request request = gson.fromJson(message, Request.class);
+			if (request != null)
+			{
+				requests.add(request);
+			}
+		}
+		return requests;
+	}
+
+	@Override
+	public void onMessage(WebSocket conn, ByteBuffer message)
+	{
+		// Binary messages are self-delimiting, so a batch is simply several requests in a row. Since one request looks
+		// the same as a batch of one, every binary frame is answered as a batch, even when that leaves it empty
+		handleRequests(conn, BinaryMessageCodec.readRequests(message), true);
+	}
+
+	static boolean isBatch(String message)
+	{
+		for (int i = 0; i < message.length(); i++)
+		{
+			if (!Character.isWhitespace(message.charAt(i)))
+			{
+				return message.charAt(i) == '[';
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Answers the requests of one frame in order. A batch is answered with a single frame holding every response,
+	 * which the client can match up by sequenceId. If anything in it needs the client thread, the whole batch is
+	 * answered from one visit to it.
+	 */
+	private void handleRequests(WebSocket conn, List<Request> requests, boolean batch)
+	{
+		boolean onClientThread = requests.stream().anyMatch(this::needsClientThread);
+		Runnable answer = () -> {
+			List<OutboundMessage> responses = new ArrayList<>();
+			for (Request request : requests)
+			{
+				OutboundMessage response = handleRequest(conn, request, onClientThread);
+				if (response != null)
+				{
+					responses.add(response);
+				}
+			}
+			if (batch)
+			{
+				send(conn, OutboundMessage.batch(responses));
+			}
+			else if (!responses.isEmpty())
+			{
+				send(conn, responses.get(0));
+			}
+		};
+		if (onClientThread)
+		{
+			clientThread.invokeLater(answer);
+		}
+		else
+		{
+			answer.run();
+		}
+	}
+
+	/**
+	 * @return Whether the request reads anything that is not kept in the published snapshot, or the snapshot was
+	 * not kept up to date while nobody was connected.
+	 */
+	private boolean needsClientThread(Request request)
+	{
+		return request.get_wsType() == RequestType.Subscribe
+			|| (request.get_wsType() == RequestType.GetPlayer && (dpsDataFetcher.isSnapshotOutdated()
+				|| (request.getFields() != null && !LoadoutSection.DEFAULT.containsAll(request.getFields()))));
+	}
+
+	/**
+	 * @return The response to the request, or null if it has none. Requests that {@link #needsClientThread} must be
+	 * handled on the client thread.
+	 * @param onClientThread Whether this is running on the client thread.
+	 */
+	@Nullable
+	private OutboundMessage handleRequest(WebSocket conn, Request request, boolean onClientThread)
+	{
+		if (request.get_wsType() == null)
+		{
+			log.debug("Got request with no handler.");
+			return null;
+		}
 		switch (request.get_wsType()) {
 			case GetPlayer:
-				clientThread.invokeLater(() -> {
-					JsonObject payload = dpsDataFetcher.buildShortlinkData();
-					executorService.submit(()->{
-						conn.send(gson.toJson(new GetPlayer(request.getSequenceId(), payload)));
-					});
-				});
-				break;
+				Set<LoadoutSection> fields = request.getFields();
+				if (onClientThread && dpsDataFetcher.isSnapshotOutdated())
+				{
+					dpsDataFetcher.refreshLoadout();
+				}
+				if (fields == null || fields.equals(LoadoutSection.DEFAULT))
+				{
+					// Answered from the last published snapshot, so there is no need to wait for the client thread
+					DpsDataFetcher.Snapshot snapshot = dpsDataFetcher.getSnapshot();
+					return new OutboundMessage(
+						() -> gson.toJson(new GetPlayer(request.getSequenceId(), snapshot.getShortlinkJson())),
+						() -> BinaryMessageCodec.getPlayer(request.getSequenceId(), snapshot.getShortlinkBinary()));
+				}
+				if (LoadoutSection.DEFAULT.containsAll(fields))
+				{
+					// Only the requested parts of the snapshot are serialized
+					JsonObject loadout = dpsDataFetcher.getSnapshot().getLoadout();
+					return getPlayer(request.getSequenceId(), loadout == null
+						? Collections.emptyList()
+						: Collections.singletonList(DpsDataFetcher.project(loadout, fields)));
+				}
+				return getPlayer(request.getSequenceId(), dpsDataFetcher.buildLoadouts(fields));
+			case Subscribe:
+				// Anything that changed since the last push goes out to the existing subscribers first, so that
+				// every subscriber starts from the loadout the next push is diffed against
+				dpsDataFetcher.refreshLoadout();
+				boolean boosts = request.getFields() != null && request.getFields().contains(LoadoutSection.BOOSTS);
+				subscribe(conn, boosts);
+				JsonObject current = dpsDataFetcher.getSnapshot().getLoadout();
+				if (boosts)
+				{
+					current = withBoosts(current, dpsDataFetcher.getBoosts());
+				}
+				return current == null ? null : loadoutChanged(new LoadoutChanged(current), null);
+			case Unsubscribe:
+				unsubscribe(conn);
+				return null;
 			default:
 				log.debug("Got request with no handler.");
-				break;
+				return null;
+		}
+	}
+
+	@Override
+	public void onClose(WebSocket conn, int code, String reason, boolean remote)
+	{
+		unsubscribe(conn);
+		disconnected(conn);
+		log.debug("ws closed conn=[{}] messages {}", conn.getRemoteSocketAddress(), conn.<OutboundQueue>getAttachment());
+	}
+
+	private synchronized void connected(WebSocket conn)
+	{
+		clients.add(conn);
+		dpsDataFetcher.setConnected(true);
+	}
+
+	private synchronized void disconnected(WebSocket conn)
+	{
+		if (clients.remove(conn) && clients.isEmpty())
+		{
+			dpsDataFetcher.setConnected(false);
+		}
+	}
+
+	/**
+	 * Must be called on the client thread.
+	 * @param boosts Whether the connection asked for the boosted levels as well.
+	 */
+	private synchronized void subscribe(WebSocket conn, boolean boosts)
+	{
+		subscribers.add(conn);
+		if (boosts)
+		{
+			boostSubscribers.add(conn);
 		}
+		else
+		{
+			boostSubscribers.remove(conn);
+		}
+		dpsDataFetcher.setPushLoadouts(true);
+		dpsDataFetcher.setPushBoosts(!boostSubscribers.isEmpty());
+	}
+
+	private synchronized void unsubscribe(WebSocket conn)
+	{
+		subscribers.remove(conn);
+		boostSubscribers.remove(conn);
+		dpsDataFetcher.setPushLoadouts(!subscribers.isEmpty());
+		dpsDataFetcher.setPushBoosts(!boostSubscribers.isEmpty());
 	}
 
 
 	@Override
 	public void onError(WebSocket conn, Exception ex)
 	{
-		log.debug("ws error conn=[{}]", conn == null ? null : conn.getLocalSocketAddress(), ex);
-		// `conn == null` signals the error is related to the whole server, not just a specific connection.
-		if (conn == null)
-		{
-			log.debug("failed to bind to port, trying next");
+		log.debug("ws error conn=[{}]", conn.getLocalSocketAddress(), ex);
+	}
+
+	@Override
+	public void onServerError(WSWebsocketServer server, Exception ex)
+	{
+		log.debug("ws server error port=[{}]", server.getPort(), ex);
+		executorService.execute(() -> {
+			// Errors from a server that has already been replaced or stopped are of no interest
+			if (server != this.server)
+			{
+				return;
+			}
 			stopServer();
-			// Immediately trying a new port is okay to do once for each port, but we do not want to continuously try to
-			// spawn servers in a tight loop if something goes wrong. If the attempted ports have wrapped around back to
-			// `PORT_MIN`, then we can stop attempting to start servers and wait for the next scheduled call to
-			// `ensureActive`.
-			if (this.nextPort != PORT_MIN)
+			if (state == State.STARTING)
 			{
-				ensureActive();
+				log.debug("failed to bind to port, trying next");
+				failedPorts.add(server.getPort());
+				startServer();
+				return;
 			}
-		}
+			// A server that keeps failing is restarted with the same growing delay as when every port is taken. The
+			// delay only starts over once a server has stayed up for a while
+			if (System.currentTimeMillis() - startedAt >= STABLE_UPTIME_MILLIS)
+			{
+				retryDelayMillis = RETRY_DELAY_MIN_MILLIS;
+			}
+			log.debug("Restarting the WebSocket server in {}ms", retryDelayMillis);
+			scheduleRetry();
+		});
 	}
 
 	@Override
-	public void onStart()
+	public void onStart(WSWebsocketServer server)
 	{
-		log.debug("Started! Port: {}", server.getPort());
+		executorService.execute(() -> {
+			if (server != this.server)
+			{
+				return;
+			}
+			log.debug("Started! Port: {}", server.getPort());
+			state = State.RUNNING;
+			startedAt = System.currentTimeMillis();
+			failedPorts.clear();
+			if (lastPort != server.getPort())
+			{
+				lastPort = server.getPort();
+				portStore.save(lastPort);
+			}
+		});
 	}
 
 	private void stopServer()
@@ -194,7 +666,12 @@ public class WebSocketManager implements WSHandler
 			}
 		} finally
 		{
-			this.serverActive.set(false);
+			subscribers.clear();
+			boostSubscribers.clear();
+			dpsDataFetcher.setPushLoadouts(false);
+			dpsDataFetcher.setPushBoosts(false);
+			clients.clear();
+			dpsDataFetcher.setConnected(false);
 		}
 	}
 }
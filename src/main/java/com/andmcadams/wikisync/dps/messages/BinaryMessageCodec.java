@@ -0,0 +1,259 @@
+package com.andmcadams.wikisync.dps.messages;
+
+import com.andmcadams.wikisync.dps.messages.response.LoadoutChanged;
+import com.andmcadams.wikisync.dps.messages.response.UsernameChanged;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Encodes and decodes the binary form of the DPS messages, used by clients that ask for the {@link #PROTOCOL}
+ * subprotocol when connecting. Everyone else keeps getting JSON text.
+ *
+ * <pre>
+ * header            byte message type, varint sequence id (0 for pushed messages)
+ * batches           the messages one after another, as every message can be read without knowing its length.
+ *                   Every request frame is a batch, answered by one frame holding the responses in request order,
+ *                   which is empty if none of them has a response
+ * requests          nothing beyond the header, except for GetPlayer and Subscribe
+ * GetPlayer request varint {@link LoadoutSection} flags, 0 for the default sections
+ * Subscribe request varint {@link LoadoutSection} flags, 0 for the default sections, which only BOOSTS adds to
+ * UsernameChanged   byte 1, varint byte length + UTF-8 username, or byte 0 while logged out
+ * GetPlayer         varint loadout count, then each loadout
+ * LoadoutChanged    one loadout holding only the sections that changed
+ * loadout           varint {@link LoadoutSection} flags, then the sections present in flag order:
+ * equipment         per slot in {@link #EQUIPMENT_SLOTS} order: varint item id + 1, or 0 for an empty slot
+ * skills, boosts    per skill in {@link #SKILLS} order: varint level
+ * buffs             byte with bit i set if {@link #BUFFS}[i] is on
+ * name              varint byte length + UTF-8
+ * prayers           varint count, then per prayer: varint byte length + UTF-8 name
+ * inventory         varint count, then per item: varint item id
+ * </pre>
+ * Switch loadouts are sent as extra loadouts rather than as a section of their own.
+ */
+public class BinaryMessageCodec
+{
+	public static final String PROTOCOL = "wikisync-binary-v1";
+
+	// The index of a type is its code on the wire, so new types may only be appended
+	private static final RequestType[] TYPES = {
+		null,
+		RequestType.UsernameChanged,
+		RequestType.GetPlayer,
+		RequestType.Subscribe,
+		RequestType.Unsubscribe,
+		RequestType.LoadoutChanged,
+	};
+
+	public static final String[] EQUIPMENT_SLOTS = {
+		"ammo", "body", "cape", "feet", "hands", "head", "legs", "neck", "ring", "shield", "weapon"
+	};
+	public static final String[] SKILLS = {"atk", "def", "hp", "magic", "mining", "prayer", "ranged", "str"};
+	public static final String[] BUFFS = {"inWilderness", "kandarinDiary", "onSlayerTask", "chargeSpell"};
+
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+	private BinaryMessageCodec()
+	{
+	}
+
+	/**
+	 * Reads every request in a frame. Like the JSON form, an unknown type is read as null.
+	 */
+	public static List<Request> readRequests(ByteBuffer in)
+	{
+		List<Request> requests = new ArrayList<>();
+		while (in.hasRemaining())
+		{
+			requests.add(readRequest(in));
+		}
+		return requests;
+	}
+
+	private static Request readRequest(ByteBuffer in)
+	{
+		int code = in.get() & 0xFF;
+		RequestType type = code < TYPES.length ? TYPES[code] : null;
+		int sequenceId = readVarint(in);
+		Set<LoadoutSection> fields = null;
+		if (type == RequestType.GetPlayer || type == RequestType.Subscribe)
+		{
+			int flags = readVarint(in);
+			fields = flags == 0 ? null : LoadoutSection.fromFlags(flags);
+		}
+		return new Request(type, sequenceId, fields);
+	}
+
+	public static byte[] usernameChanged(UsernameChanged message)
+	{
+		BinaryMessageCodec codec = new BinaryMessageCodec();
+		codec.writeHeader(message.get_wsType(), 0);
+		if (message.getUsername() == null)
+		{
+			codec.out.write(0);
+		}
+		else
+		{
+			codec.out.write(1);
+			codec.writeString(message.getUsername());
+		}
+		return codec.out.toByteArray();
+	}
+
+	/**
+	 * @param loadouts The payload, as encoded by {@link #loadouts}.
+	 */
+	public static byte[] getPlayer(int sequenceId, @Nullable byte[] loadouts)
+	{
+		BinaryMessageCodec codec = new BinaryMessageCodec();
+		codec.writeHeader(RequestType.GetPlayer, sequenceId);
+		if (loadouts == null)
+		{
+			codec.writeVarint(0);
+		}
+		else
+		{
+			codec.out.write(loadouts, 0, loadouts.length);
+		}
+		return codec.out.toByteArray();
+	}
+
+	public static byte[] loadoutChanged(LoadoutChanged message)
+	{
+		BinaryMessageCodec codec = new BinaryMessageCodec();
+		codec.writeHeader(message.get_wsType(), 0);
+		codec.writeLoadout(message.getPayload());
+		return codec.out.toByteArray();
+	}
+
+	/**
+	 * Encodes the payload of a {@link RequestType#GetPlayer} response ahead of time, so that it can be answered
+	 * without looking at the loadout again.
+	 */
+	public static byte[] loadouts(List<JsonObject> loadouts)
+	{
+		BinaryMessageCodec codec = new BinaryMessageCodec();
+		codec.writeVarint(loadouts.size());
+		for (JsonObject loadout : loadouts)
+		{
+			codec.writeLoadout(loadout);
+		}
+		return codec.out.toByteArray();
+	}
+
+	private void writeHeader(RequestType type, int sequenceId)
+	{
+		for (int code = 1; code < TYPES.length; code++)
+		{
+			if (TYPES[code] == type)
+			{
+				out.write(code);
+				writeVarint(sequenceId);
+				return;
+			}
+		}
+		throw new IllegalArgumentException("No binary code for " + type);
+	}
+
+	private void writeLoadout(JsonObject loadout)
+	{
+		int flags = 0;
+		for (LoadoutSection section : LoadoutSection.values())
+		{
+			if (loadout.has(section.getKey()))
+			{
+				flags |= section.getFlag();
+			}
+		}
+		writeVarint(flags);
+
+		for (LoadoutSection section : LoadoutSection.values())
+		{
+			JsonElement value = loadout.get(section.getKey());
+			if (value == null)
+			{
+				continue;
+			}
+			switch (section)
+			{
+				case EQUIPMENT:
+					for (String slot : EQUIPMENT_SLOTS)
+					{
+						JsonElement item = value.getAsJsonObject().get(slot);
+						writeVarint(item == null || item.isJsonNull() ? 0 : item.getAsJsonObject().get("id").getAsInt() + 1);
+					}
+					break;
+				case SKILLS:
+				case BOOSTS:
+					for (String skill : SKILLS)
+					{
+						writeVarint(value.getAsJsonObject().get(skill).getAsInt());
+					}
+					break;
+				case BUFFS:
+					int bits = 0;
+					for (int i = 0; i < BUFFS.length; i++)
+					{
+						bits |= value.getAsJsonObject().get(BUFFS[i]).getAsBoolean() ? 1 << i : 0;
+					}
+					out.write(bits);
+					break;
+				case NAME:
+					writeString(value.getAsString());
+					break;
+				case PRAYERS:
+					writeVarint(value.getAsJsonArray().size());
+					for (JsonElement prayer : value.getAsJsonArray())
+					{
+						writeString(prayer.getAsString());
+					}
+					break;
+				case INVENTORY:
+					writeVarint(value.getAsJsonArray().size());
+					for (JsonElement item : value.getAsJsonArray())
+					{
+						writeVarint(item.getAsJsonObject().get("id").getAsInt());
+					}
+					break;
+			}
+		}
+	}
+
+	private void writeString(String s)
+	{
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeVarint(bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private void writeVarint(int value)
+	{
+		while ((value & ~0x7F) != 0)
+		{
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static int readVarint(ByteBuffer in)
+	{
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7)
+		{
+			int b = in.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+}
@@ -0,0 +1,68 @@
+package com.andmcadams.wikisync.dps.messages;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * The parts of a loadout a {@link RequestType#GetPlayer} request can ask for. Requests that do not name any get
+ * {@link #DEFAULT}, which is what the shortlink data has always held.
+ */
+@Getter
+@RequiredArgsConstructor
+public enum LoadoutSection
+{
+	EQUIPMENT("equipment", 1),
+	SKILLS("skills", 2),
+	BUFFS("buffs", 4),
+	NAME("name", 8),
+	// Boosted levels, keyed the same way as the skills
+	BOOSTS("boosts", 16),
+	// The names of the active prayers
+	PRAYERS("prayers", 32),
+	// The items in the inventory
+	INVENTORY("inventory", 64),
+	// Extra loadouts, with the equipable items in the inventory swapped in
+	SWITCHES("switches", 128),
+	;
+
+	/**
+	 * These sections are kept up to date as the game changes, so asking for them never has to wait on the client
+	 * thread.
+	 */
+	public static final Set<LoadoutSection> DEFAULT = Collections.unmodifiableSet(EnumSet.of(EQUIPMENT, SKILLS, BUFFS, NAME));
+
+	private final String key;
+	// The bit for the section in the binary protocol
+	private final int flag;
+
+	/**
+	 * @return The section with the given JSON key, or null if there is none.
+	 */
+	public static LoadoutSection fromKey(String key)
+	{
+		for (LoadoutSection section : values())
+		{
+			if (section.key.equals(key))
+			{
+				return section;
+			}
+		}
+		return null;
+	}
+
+	public static Set<LoadoutSection> fromFlags(int flags)
+	{
+		Set<LoadoutSection> sections = EnumSet.noneOf(LoadoutSection.class);
+		for (LoadoutSection section : values())
+		{
+			if ((flags & section.flag) != 0)
+			{
+				sections.add(section);
+			}
+		}
+		return sections;
+	}
+}
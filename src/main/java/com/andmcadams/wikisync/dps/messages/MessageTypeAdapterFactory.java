@@ -0,0 +1,44 @@
+package com.andmcadams.wikisync.dps.messages;
+
+import com.andmcadams.wikisync.dps.messages.response.GetPlayer;
+import com.andmcadams.wikisync.dps.messages.response.GetPlayerTypeAdapter;
+import com.andmcadams.wikisync.dps.messages.response.LoadoutChanged;
+import com.andmcadams.wikisync.dps.messages.response.LoadoutChangedTypeAdapter;
+import com.andmcadams.wikisync.dps.messages.response.UsernameChanged;
+import com.andmcadams.wikisync.dps.messages.response.UsernameChangedTypeAdapter;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * Hands out the hand-written adapters for the DPS WebSocket messages. Like the player data adapters, these are
+ * registered on the Gson instance of the WebSocket manager rather than annotated on the types.
+ */
+public class MessageTypeAdapterFactory implements TypeAdapterFactory
+{
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type)
+	{
+		if (type.getRawType() == Request.class)
+		{
+			return (TypeAdapter<T>) new RequestTypeAdapter().nullSafe();
+		}
+		if (type.getRawType() == GetPlayer.class)
+		{
+			return (TypeAdapter<T>) new GetPlayerTypeAdapter().nullSafe();
+		}
+		if (type.getRawType() == UsernameChanged.class)
+		{
+			return (TypeAdapter<T>) new UsernameChangedTypeAdapter().nullSafe();
+		}
+		if (type.getRawType() == LoadoutChanged.class)
+		{
+			return (TypeAdapter<T>) new LoadoutChangedTypeAdapter(gson.getAdapter(JsonObject.class)).nullSafe();
+		}
+		return null;
+	}
+}
@@ -1,5 +1,6 @@
 package com.andmcadams.wikisync.dps.messages;
 
+import java.util.Set;
 import lombok.Value;
 
 @Value
@@ -7,4 +8,7 @@ public class Request
 {
 	RequestType _wsType;
 	int sequenceId;
+	// The sections a GetPlayer request asks for, null for the default ones. A Subscribe request can add BOOSTS to the
+	// default sections it is pushed
+	Set<LoadoutSection> fields;
 }
@@ -3,5 +3,8 @@ package com.andmcadams.wikisync.dps.messages;
 public enum RequestType
 {
 	UsernameChanged,
-	GetPlayer
+	GetPlayer,
+	Subscribe,
+	Unsubscribe,
+	LoadoutChanged
 }
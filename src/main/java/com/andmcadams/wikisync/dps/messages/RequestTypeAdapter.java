@@ -0,0 +1,110 @@
+package com.andmcadams.wikisync.dps.messages;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Reads and writes {@link Request} without going through reflection. Like Gson's reflective adapter, an unknown
+ * {@code _wsType} is read as null and unknown fields are skipped. The {@code fields} of a GetPlayer request are
+ * written as an array of section keys.
+ */
+public class RequestTypeAdapter extends TypeAdapter<Request>
+{
+
+	@Override
+	public void write(JsonWriter out, Request request) throws IOException
+	{
+		out.beginObject();
+		if (request.get_wsType() != null)
+		{
+			out.name("_wsType").value(request.get_wsType().name());
+		}
+		out.name("sequenceId").value(request.getSequenceId());
+		if (request.getFields() != null)
+		{
+			out.name("fields").beginArray();
+			for (LoadoutSection section : request.getFields())
+			{
+				out.value(section.getKey());
+			}
+			out.endArray();
+		}
+		out.endObject();
+	}
+
+	@Override
+	public Request read(JsonReader in) throws IOException
+	{
+		RequestType type = null;
+		int sequenceId = 0;
+		Set<LoadoutSection> fields = null;
+		in.beginObject();
+		while (in.hasNext())
+		{
+			switch (in.nextName())
+			{
+				case "_wsType":
+					type = readType(in);
+					break;
+				case "sequenceId":
+					sequenceId = in.nextInt();
+					break;
+				case "fields":
+					fields = readFields(in);
+					break;
+				default:
+					in.skipValue();
+					break;
+			}
+		}
+		in.endObject();
+		return new Request(type, sequenceId, fields);
+	}
+
+	/**
+	 * Reads the names of the requested sections, skipping any this version does not know about.
+	 */
+	private static Set<LoadoutSection> readFields(JsonReader in) throws IOException
+	{
+		if (in.peek() == JsonToken.NULL)
+		{
+			in.nextNull();
+			return null;
+		}
+		Set<LoadoutSection> fields = EnumSet.noneOf(LoadoutSection.class);
+		in.beginArray();
+		while (in.hasNext())
+		{
+			LoadoutSection section = LoadoutSection.fromKey(in.nextString());
+			if (section != null)
+			{
+				fields.add(section);
+			}
+		}
+		in.endArray();
+		return fields;
+	}
+
+	private static RequestType readType(JsonReader in) throws IOException
+	{
+		if (in.peek() == JsonToken.NULL)
+		{
+			in.nextNull();
+			return null;
+		}
+		String name = in.nextString();
+		for (RequestType type : RequestType.values())
+		{
+			if (type.name().equals(name))
+			{
+				return type;
+			}
+		}
+		return null;
+	}
+}
@@ -1,13 +1,15 @@
 package com.andmcadams.wikisync.dps.messages.response;
 
 import com.andmcadams.wikisync.dps.messages.RequestType;
-import com.google.gson.JsonObject;
 import lombok.Value;
 
+/**
+ * The payload is the shortlink data, already serialized to JSON, or null while logged out.
+ */
 @Value
 public class GetPlayer
 {
 	RequestType _wsType = RequestType.GetPlayer;
 	int sequenceId;
-	JsonObject payload;
+	String payload;
 }
@@ -0,0 +1,64 @@
+package com.andmcadams.wikisync.dps.messages.response;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+
+/**
+ * Reads and writes {@link GetPlayer} without going through reflection. The payload is already serialized, so it is
+ * copied into the output as is rather than being parsed and written again. When reading, the payload is kept as the
+ * JSON it was received as.
+ */
+public class GetPlayerTypeAdapter extends TypeAdapter<GetPlayer>
+{
+	private static final TypeAdapter<JsonElement> PAYLOAD_ADAPTER = new Gson().getAdapter(JsonElement.class);
+
+	@Override
+	public void write(JsonWriter out, GetPlayer message) throws IOException
+	{
+		out.beginObject();
+		out.name("_wsType").value(message.get_wsType().name());
+		out.name("sequenceId").value(message.getSequenceId());
+		if (message.getPayload() != null)
+		{
+			out.name("payload").jsonValue(message.getPayload());
+		}
+		out.endObject();
+	}
+
+	@Override
+	public GetPlayer read(JsonReader in) throws IOException
+	{
+		int sequenceId = 0;
+		String payload = null;
+		in.beginObject();
+		while (in.hasNext())
+		{
+			switch (in.nextName())
+			{
+				case "sequenceId":
+					sequenceId = in.nextInt();
+					break;
+				case "payload":
+					if (in.peek() == JsonToken.NULL)
+					{
+						in.nextNull();
+					}
+					else
+					{
+						payload = PAYLOAD_ADAPTER.read(in).toString();
+					}
+					break;
+				default:
+					in.skipValue();
+					break;
+			}
+		}
+		in.endObject();
+		return new GetPlayer(sequenceId, payload);
+	}
+}
@@ -0,0 +1,17 @@
+package com.andmcadams.wikisync.dps.messages.response;
+
+import com.andmcadams.wikisync.dps.messages.RequestType;
+import com.google.gson.JsonObject;
+import lombok.Value;
+
+/**
+ * Pushed to subscribed clients when the loadout changes. The payload holds the sections of the loadout (equipment,
+ * skills, buffs, name) that changed, each in full, so a section in the payload replaces the client's copy of it.
+ * The first message after subscribing holds every section.
+ */
+@Value
+public class LoadoutChanged
+{
+	RequestType _wsType = RequestType.LoadoutChanged;
+	JsonObject payload;
+}
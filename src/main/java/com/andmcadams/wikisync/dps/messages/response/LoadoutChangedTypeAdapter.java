@@ -0,0 +1,52 @@
+package com.andmcadams.wikisync.dps.messages.response;
+
+import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Reads and writes {@link LoadoutChanged} without going through reflection, matching Gson's reflective output. The
+ * payload is handled by the {@link JsonObject} adapter of the Gson instance in use.
+ */
+@RequiredArgsConstructor
+public class LoadoutChangedTypeAdapter extends TypeAdapter<LoadoutChanged>
+{
+	private final TypeAdapter<JsonObject> payloadAdapter;
+
+	@Override
+	public void write(JsonWriter out, LoadoutChanged message) throws IOException
+	{
+		out.beginObject();
+		out.name("_wsType").value(message.get_wsType().name());
+		if (message.getPayload() != null)
+		{
+			out.name("payload");
+			payloadAdapter.write(out, message.getPayload());
+		}
+		out.endObject();
+	}
+
+	@Override
+	public LoadoutChanged read(JsonReader in) throws IOException
+	{
+		JsonObject payload = null;
+		in.beginObject();
+		while (in.hasNext())
+		{
+			if (in.nextName().equals("payload") && in.peek() != JsonToken.NULL)
+			{
+				payload = payloadAdapter.read(in);
+			}
+			else
+			{
+				in.skipValue();
+			}
+		}
+		in.endObject();
+		return new LoadoutChanged(payload);
+	}
+}
@@ -0,0 +1,47 @@
+package com.andmcadams.wikisync.dps.messages.response;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+
+/**
+ * Reads and writes {@link UsernameChanged} without going through reflection, matching Gson's reflective output.
+ */
+public class UsernameChangedTypeAdapter extends TypeAdapter<UsernameChanged>
+{
+
+	@Override
+	public void write(JsonWriter out, UsernameChanged message) throws IOException
+	{
+		out.beginObject();
+		out.name("_wsType").value(message.get_wsType().name());
+		if (message.getUsername() != null)
+		{
+			out.name("username").value(message.getUsername());
+		}
+		out.endObject();
+	}
+
+	@Override
+	public UsernameChanged read(JsonReader in) throws IOException
+	{
+		// _wsType is fixed for this message, so like any unknown field it is skipped
+		String username = null;
+		in.beginObject();
+		while (in.hasNext())
+		{
+			if (in.nextName().equals("username") && in.peek() != JsonToken.NULL)
+			{
+				username = in.nextString();
+			}
+			else
+			{
+				in.skipValue();
+			}
+		}
+		in.endObject();
+		return new UsernameChanged(username);
+	}
+}
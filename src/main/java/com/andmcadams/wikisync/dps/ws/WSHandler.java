@@ -1,5 +1,6 @@
 package com.andmcadams.wikisync.dps.ws;
 
+import java.nio.ByteBuffer;
 import org.java_websocket.WebSocket;
 import org.java_websocket.handshake.ClientHandshake;
 
@@ -9,7 +10,10 @@ public interface WSHandler
 	default void onOpen(WebSocket conn, ClientHandshake handshake) {}
 	default void onClose(WebSocket conn, int code, String reason, boolean remote) {}
 	default void onMessage(WebSocket conn, String message) {}
+	default void onMessage(WebSocket conn, ByteBuffer message) {}
 	default void onError(WebSocket conn, Exception ex) {}
-	default void onStart() {}
+	// Errors that concern the whole server rather than a connection, e.g. failing to bind its port
+	default void onServerError(WSWebsocketServer server, Exception ex) {}
+	default void onStart(WSWebsocketServer server) {}
 
 }
@@ -1,22 +1,46 @@
 package com.andmcadams.wikisync.dps.ws;
 
+import com.andmcadams.wikisync.dps.messages.BinaryMessageCodec;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
 import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.protocols.Protocol;
 import org.java_websocket.handshake.ClientHandshake;
 import org.java_websocket.server.WebSocketServer;
 
 public class WSWebsocketServer extends WebSocketServer
 {
 
+	/**
+	 * Messages shorter than this many bytes are sent uncompressed. Deflating a short message costs about as much CPU
+	 * as a long one but saves next to nothing, see DeflateBenchmark in the tests.
+	 */
+	public static final int COMPRESSION_THRESHOLD = 256;
+
 	private final WSHandler handler;
 
 	public WSWebsocketServer(int port, WSHandler handler)
 	{
-		super(new InetSocketAddress("127.0.0.1", port), 1);
+		// Browsers that do not offer permessage-deflate fall back to the uncompressed default extension, and those that
+		// do not ask for the binary protocol get JSON text
+		super(new InetSocketAddress("127.0.0.1", port), 1, Collections.singletonList(new Draft_6455(
+			Collections.singletonList(createDeflateExtension()),
+			Arrays.asList(new Protocol(BinaryMessageCodec.PROTOCOL), new Protocol("")))));
 		this.setDaemon(true);
 		this.handler = handler;
 	}
 
+	private static PerMessageDeflateExtension createDeflateExtension()
+	{
+		PerMessageDeflateExtension extension = new PerMessageDeflateExtension();
+		extension.setThreshold(COMPRESSION_THRESHOLD);
+		return extension;
+	}
+
 	@Override
 	public void onOpen(WebSocket conn, ClientHandshake handshake)
 	{
@@ -35,15 +59,29 @@ public class WSWebsocketServer extends WebSocketServer
 		this.handler.onMessage(conn, message);
 	}
 
+	@Override
+	public void onMessage(WebSocket conn, ByteBuffer message)
+	{
+		this.handler.onMessage(conn, message);
+	}
+
 	@Override
 	public void onError(WebSocket conn, Exception ex)
 	{
-		this.handler.onError(conn, ex);
+		// `conn == null` signals the error is related to the whole server, not just a specific connection.
+		if (conn == null)
+		{
+			this.handler.onServerError(this, ex);
+		}
+		else
+		{
+			this.handler.onError(conn, ex);
+		}
 	}
 
 	@Override
 	public void onStart()
 	{
-		this.handler.onStart();
+		this.handler.onStart(this);
 	}
 }
@@ -0,0 +1,323 @@
+package com.andmcadams.wikisync;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import net.runelite.api.Skill;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Every submission has to decode back to exactly the fields of the delta it was encoded from. The binary format is
+ * also only worth negotiating if it is smaller than the JSON submission it replaces, for full syncs as well as the
+ * small deltas most uploads are. The data is synthetic but shaped like a real manifest and account: 5000 varbits,
+ * 1500 varps and a collection log of 1600 slots.
+ */
+public class BinarySubmissionEncoderTest
+{
+	private final Gson gson = new GsonBuilder()
+		.registerTypeAdapterFactory(new PlayerDataTypeAdapterFactory())
+		.create();
+	private final Random random = new Random(7);
+	private final ManifestIndex index = new ManifestIndex(manifest());
+
+	@Test
+	public void testInitialSync() throws IOException
+	{
+		PlayerDataStore delta = new PlayerDataStore(index);
+		for (int slot = 0; slot < index.getVarbitCount(); slot++)
+		{
+			delta.setVarbit(slot, random.nextInt(4));
+		}
+		for (int slot = 0; slot < index.getVarpCount(); slot++)
+		{
+			delta.setVarp(slot, random.nextInt(1 << 20));
+		}
+		for (Skill skill : Skill.values())
+		{
+			delta.setLevel(skill, 1 + random.nextInt(99));
+		}
+		BitSet clog = new BitSet();
+		for (int slot = 0; slot < 1600; slot++)
+		{
+			if (random.nextInt(3) == 0)
+			{
+				clog.set(slot);
+			}
+		}
+		delta.setCollectionLog(clog, 1600);
+		assertRoundTrip(delta);
+		assertSmaller(delta, true);
+	}
+
+	@Test
+	public void testQuestStep() throws IOException
+	{
+		PlayerDataStore delta = new PlayerDataStore(index);
+		for (int i = 0; i < 40; i++)
+		{
+			delta.setVarbit(random.nextInt(index.getVarbitCount()), random.nextInt(16));
+		}
+		for (int i = 0; i < 6; i++)
+		{
+			delta.setVarp(random.nextInt(index.getVarpCount()), random.nextInt(1 << 20));
+		}
+		assertRoundTrip(delta);
+		assertSmaller(delta, false);
+	}
+
+	@Test
+	public void testLevelUp() throws IOException
+	{
+		PlayerDataStore delta = new PlayerDataStore(index);
+		delta.setLevel(Skill.SLAYER, 86);
+		delta.setVarp(0, 112);
+		assertRoundTrip(delta);
+		assertSmaller(delta, false);
+	}
+
+	@Test
+	public void testNegativeAndLargeValues()
+	{
+		PlayerDataStore delta = new PlayerDataStore(index);
+		delta.setVarbit(0, -1);
+		delta.setVarbit(index.getVarbitCount() - 1, Integer.MAX_VALUE);
+		delta.setVarp(1, Integer.MIN_VALUE);
+		delta.setVarp(index.getVarpCount() - 1, -123456);
+		delta.setLevel(Skill.HITPOINTS, 10);
+		assertRoundTrip(delta);
+	}
+
+	@Test
+	public void testNewCollectionLogSlots()
+	{
+		// Scattered slots are shorter as gaps between slots, long stretches as runs
+		BitSet sparse = new BitSet();
+		sparse.set(3);
+		sparse.set(700);
+		sparse.set(1599);
+		assertRoundTrip(newSlots(sparse));
+
+		BitSet runs = new BitSet();
+		runs.set(0, 200);
+		runs.set(450, 1200);
+		assertRoundTrip(newSlots(runs));
+	}
+
+	@Test
+	public void testCollectionLogCountOnly()
+	{
+		PlayerDataStore delta = new PlayerDataStore(index);
+		delta.setCollectionLog(new BitSet(), 1600);
+		assertRoundTrip(delta);
+	}
+
+	private PlayerDataStore newSlots(BitSet slots)
+	{
+		PlayerDataStore delta = new PlayerDataStore(index);
+		delta.collectionLog = slots;
+		delta.collectionLogItemCount = 1600;
+		delta.collectionLogIncremental = true;
+		return delta;
+	}
+
+	private void assertRoundTrip(PlayerDataStore delta)
+	{
+		Decoder decoded = new Decoder(BinarySubmissionEncoder.encode("Zezima", "STANDARD", delta));
+		assertEquals(index.getManifest().version, decoded.manifestVersion);
+		assertEquals("Zezima", decoded.username);
+		assertEquals("STANDARD", decoded.profile);
+		assertEquals(values(delta.varbKnown, delta.varb), decoded.varbits);
+		assertEquals(values(delta.varpKnown, delta.varp), decoded.varps);
+		Map<String, Integer> levels = new LinkedHashMap<>();
+		for (int i = delta.levelKnown.nextSetBit(0); i >= 0; i = delta.levelKnown.nextSetBit(i + 1))
+		{
+			levels.put(Skill.values()[i].getName(), delta.level[i]);
+		}
+		assertEquals(levels, decoded.levels);
+		assertEquals(delta.collectionLogItemCount, decoded.collectionLogItemCount);
+		BitSet expected = delta.collectionLog != null && !delta.collectionLog.isEmpty() ? delta.collectionLog : null;
+		assertEquals(delta.collectionLogIncremental ? null : expected, decoded.collectionLogSlots);
+		assertEquals(delta.collectionLogIncremental ? expected : null, decoded.newCollectionLogSlots);
+		assertEquals("trailing bytes", decoded.bytes.length, decoded.pos);
+	}
+
+	private static Map<Integer, Integer> values(BitSet known, int[] values)
+	{
+		Map<Integer, Integer> out = new LinkedHashMap<>();
+		for (int slot = known.nextSetBit(0); slot >= 0; slot = known.nextSetBit(slot + 1))
+		{
+			out.put(slot, values[slot]);
+		}
+		return out;
+	}
+
+	private void assertSmaller(PlayerDataStore delta, boolean gzipped) throws IOException
+	{
+		byte[] json = gson.toJson(new PlayerDataSubmission("Zezima", "STANDARD", delta.toPlayerData()))
+			.getBytes(StandardCharsets.UTF_8);
+		byte[] binary = BinarySubmissionEncoder.encode("Zezima", "STANDARD", delta);
+		assertTrue("binary " + binary.length + " >= json " + json.length, binary.length < json.length);
+		// Large bodies are gzipped before they are sent, which has to keep the binary format ahead
+		if (gzipped)
+		{
+			int gzippedJson = gzip(json).length;
+			int gzippedBinary = gzip(binary).length;
+			assertTrue("gzipped binary " + gzippedBinary + " >= gzipped json " + gzippedJson,
+				gzippedBinary < gzippedJson);
+		}
+	}
+
+	/**
+	 * Reads a submission back following the format described on {@link BinarySubmissionEncoder}.
+	 */
+	private static class Decoder
+	{
+		final byte[] bytes;
+		int pos;
+
+		final int manifestVersion;
+		final String username;
+		final String profile;
+		final Map<Integer, Integer> varbits;
+		final Map<Integer, Integer> varps;
+		final Map<String, Integer> levels = new LinkedHashMap<>();
+		Integer collectionLogItemCount;
+		BitSet collectionLogSlots;
+		BitSet newCollectionLogSlots;
+
+		Decoder(byte[] bytes)
+		{
+			this.bytes = bytes;
+			assertEquals('W', bytes[pos++]);
+			assertEquals('S', bytes[pos++]);
+			assertEquals(1, bytes[pos++]);
+			manifestVersion = readSignedVarint();
+			username = readString();
+			profile = readString();
+			varbits = readSlots();
+			varps = readSlots();
+			int levelCount = readVarint();
+			for (int i = 0; i < levelCount; i++)
+			{
+				levels.put(readString(), readSignedVarint());
+			}
+			int flags = bytes[pos++];
+			if ((flags & 1) != 0)
+			{
+				collectionLogItemCount = readSignedVarint();
+			}
+			if ((flags & 2) != 0)
+			{
+				int length = readVarint();
+				collectionLogSlots = BitSet.valueOf(Arrays.copyOfRange(bytes, pos, pos + length));
+				pos += length;
+			}
+			if ((flags & 4) != 0)
+			{
+				newCollectionLogSlots = new BitSet();
+				int encoding = bytes[pos++];
+				int count = readVarint();
+				int previous = -1;
+				for (int i = 0; i < count; i++)
+				{
+					if (encoding == 0)
+					{
+						previous += readVarint() + 1;
+						newCollectionLogSlots.set(previous);
+					}
+					else
+					{
+						int start = previous + 1 + readVarint();
+						int end = start + readVarint();
+						newCollectionLogSlots.set(start, end);
+						previous = end - 1;
+					}
+				}
+			}
+		}
+
+		private Map<Integer, Integer> readSlots()
+		{
+			Map<Integer, Integer> out = new LinkedHashMap<>();
+			int count = readVarint();
+			int slot = -1;
+			for (int i = 0; i < count; i++)
+			{
+				slot += readVarint() + 1;
+				out.put(slot, readSignedVarint());
+			}
+			return out;
+		}
+
+		private String readString()
+		{
+			int length = readVarint();
+			String s = new String(bytes, pos, length, StandardCharsets.UTF_8);
+			pos += length;
+			return s;
+		}
+
+		private int readSignedVarint()
+		{
+			int value = readVarint();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		private int readVarint()
+		{
+			int value = 0;
+			for (int shift = 0; ; shift += 7)
+			{
+				int b = bytes[pos++] & 0xFF;
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+				{
+					return value;
+				}
+			}
+		}
+	}
+
+	private static byte[] gzip(byte[] data) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(out))
+		{
+			gzip.write(data);
+		}
+		return out.toByteArray();
+	}
+
+	private Manifest manifest()
+	{
+		Manifest manifest = new Manifest();
+		manifest.version = 12;
+		manifest.varbits = ascendingIds(5000, 20000);
+		manifest.varps = ascendingIds(1500, 4000);
+		manifest.features.add(BinarySubmissionEncoder.MANIFEST_FEATURE);
+		return manifest;
+	}
+
+	/**
+	 * @return {@code count} distinct ids below {@code max} in ascending order, like the lists in a real manifest.
+	 */
+	private int[] ascendingIds(int count, int max)
+	{
+		BitSet picked = new BitSet(max);
+		while (picked.cardinality() < count)
+		{
+			picked.set(random.nextInt(max));
+		}
+		return picked.stream().toArray();
+	}
+}
@@ -0,0 +1,122 @@
+package com.andmcadams.wikisync;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * The hand-written adapters have to produce exactly what Gson's reflective adapter did before they existed, since the
+ * server parses whatever is uploaded.
+ */
+public class PlayerDataTypeAdapterTest
+{
+	private final Gson reflective = new Gson();
+	private final Gson adapted = new GsonBuilder()
+		.registerTypeAdapterFactory(new PlayerDataTypeAdapterFactory())
+		.create();
+
+	@Test
+	public void testFullData()
+	{
+		assertSameJson(fullData());
+	}
+
+	@Test
+	public void testEmptyData()
+	{
+		assertSameJson(new PlayerData());
+	}
+
+	@Test
+	public void testNullFields()
+	{
+		PlayerData data = new PlayerData(null, null, null, null, null, null, null);
+		assertSameJson(data);
+	}
+
+	@Test
+	public void testNullMapValues()
+	{
+		PlayerData data = new PlayerData();
+		data.varb.put(4, null);
+		data.level.put("Attack", null);
+		data.level.put("Defence", 1);
+		assertSameJson(data);
+	}
+
+	@Test
+	public void testNewCollectionLogSlots()
+	{
+		PlayerData sparse = fullData();
+		BitSet slots = new BitSet();
+		slots.set(3);
+		slots.set(700);
+		sparse.setNewCollectionLogSlots(slots);
+		assertSameJson(sparse);
+
+		PlayerData runs = fullData();
+		slots.set(10, 40);
+		runs.setNewCollectionLogSlots(slots);
+		assertSameJson(runs);
+	}
+
+	@Test
+	public void testSubmission()
+	{
+		assertSameJson(new PlayerDataSubmission("Zezima", "STANDARD", fullData()));
+		assertSameJson(new PlayerDataSubmission("Zezima", "STANDARD", new PlayerData()));
+		assertSameJson(new PlayerDataSubmission(null, null, null));
+	}
+
+	@Test
+	public void testUnknownFieldsAreSkipped()
+	{
+		String json = "{\"version\":3,\"varb\":{\"1\":2},\"extra\":[1,{\"a\":null}],\"level\":{\"Attack\":99}}";
+		assertEquals(reflective.toJson(reflective.fromJson(json, PlayerData.class)),
+			reflective.toJson(adapted.fromJson(json, PlayerData.class)));
+	}
+
+	private void assertSameJson(PlayerData data)
+	{
+		String json = reflective.toJson(data);
+		assertEquals(json, adapted.toJson(data));
+		// Reading it back has to give the same values too, compared as JSON since PlayerData holds arrays
+		assertEquals(reflective.toJson(reflective.fromJson(json, PlayerData.class)),
+			reflective.toJson(adapted.fromJson(json, PlayerData.class)));
+	}
+
+	private void assertSameJson(PlayerDataSubmission submission)
+	{
+		String json = reflective.toJson(submission);
+		assertEquals(json, adapted.toJson(submission));
+		assertEquals(reflective.toJson(reflective.fromJson(json, PlayerDataSubmission.class)),
+			reflective.toJson(adapted.fromJson(json, PlayerDataSubmission.class)));
+	}
+
+	private static PlayerData fullData()
+	{
+		Map<Integer, Integer> varb = new HashMap<>();
+		varb.put(4, 1);
+		varb.put(3927, -1);
+		varb.put(12345, Integer.MAX_VALUE);
+		Map<Integer, Integer> varp = new HashMap<>();
+		varp.put(0, 0);
+		varp.put(2187, 1 << 30);
+		Map<String, Integer> level = new HashMap<>();
+		level.put("Attack", 99);
+		level.put("Hitpoints", 10);
+		BitSet clog = new BitSet();
+		clog.set(0);
+		clog.set(17, 90);
+		clog.set(1500);
+		PlayerData data = new PlayerData(varb, varp, level, 42, null, null, null);
+		data.collectionLogSlots = Base64.getEncoder().encodeToString(clog.toByteArray());
+		return data;
+	}
+}
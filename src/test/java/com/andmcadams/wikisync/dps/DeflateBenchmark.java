@@ -0,0 +1,136 @@
+package com.andmcadams.wikisync.dps;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Measures what permessage-deflate does to the messages the DPS WebSocket server sends, to help tune
+ * {@link com.andmcadams.wikisync.dps.ws.WSWebsocketServer#COMPRESSION_THRESHOLD}. Every message is compressed on
+ * its own, the same as the extension does without context takeover, and the 4 byte tail that RFC 7692 strips is
+ * not counted.
+ */
+public class DeflateBenchmark
+{
+	private static final int WARMUP_ITERATIONS = 20_000;
+	private static final int ITERATIONS = 100_000;
+
+	public static void main(String[] args)
+	{
+		Gson gson = new Gson();
+		JsonObject loadout = loadout();
+
+		Map<String, String> messages = new LinkedHashMap<>();
+		messages.put("UsernameChanged", "{\"_wsType\":\"UsernameChanged\",\"username\":\"Zezima\"}");
+		JsonObject skills = new JsonObject();
+		skills.add("skills", loadout.get("skills"));
+		messages.put("LoadoutChanged (skills)", loadoutChanged(gson, skills));
+		JsonObject equipment = new JsonObject();
+		equipment.add("equipment", loadout.get("equipment"));
+		messages.put("LoadoutChanged (equipment)", loadoutChanged(gson, equipment));
+		messages.put("LoadoutChanged (full)", loadoutChanged(gson, loadout));
+		JsonObject shortlink = new JsonObject();
+		JsonArray loadouts = new JsonArray();
+		loadouts.add(loadout);
+		shortlink.add("loadouts", loadouts);
+		messages.put("GetPlayer", "{\"_wsType\":\"GetPlayer\",\"sequenceId\":12,\"payload\":" + gson.toJson(shortlink) + "}");
+
+		System.out.printf("%-28s %6s %6s %8s %6s %8s %6s %8s%n", "message", "raw", "lvl1", "us/op", "lvl6", "us/op", "lvl9", "us/op");
+		for (Map.Entry<String, String> message : messages.entrySet())
+		{
+			byte[] raw = message.getValue().getBytes(StandardCharsets.UTF_8);
+			System.out.printf("%-28s %6d", message.getKey(), raw.length);
+			for (int level : new int[]{1, Deflater.DEFAULT_COMPRESSION, 9})
+			{
+				Deflater deflater = new Deflater(level, true);
+				for (int i = 0; i < WARMUP_ITERATIONS; i++)
+				{
+					compress(deflater, raw);
+				}
+				long start = System.nanoTime();
+				int size = 0;
+				for (int i = 0; i < ITERATIONS; i++)
+				{
+					size = compress(deflater, raw);
+				}
+				double micros = (System.nanoTime() - start) / 1000.0 / ITERATIONS;
+				deflater.end();
+				System.out.printf(" %6d %8.2f", size, micros);
+			}
+			System.out.println();
+		}
+	}
+
+	private static int compress(Deflater deflater, byte[] raw)
+	{
+		deflater.reset();
+		deflater.setInput(raw);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length);
+		byte[] buffer = new byte[1024];
+		int read;
+		while ((read = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH)) > 0)
+		{
+			out.write(buffer, 0, read);
+		}
+		return out.size() - 4;
+	}
+
+	private static String loadoutChanged(Gson gson, JsonObject payload)
+	{
+		return "{\"_wsType\":\"LoadoutChanged\",\"payload\":" + gson.toJson(payload) + "}";
+	}
+
+	/**
+	 * A loadout shaped like {@link DpsDataFetcher#buildShortlinkData}, wearing a typical set of melee gear.
+	 */
+	private static JsonObject loadout()
+	{
+		JsonObject l = new JsonObject();
+		JsonObject eq = new JsonObject();
+		eq.add("ammo", item(22947));
+		eq.add("body", item(26384));
+		eq.add("cape", item(21295));
+		eq.add("feet", item(13239));
+		eq.add("hands", item(22981));
+		eq.add("head", item(26382));
+		eq.add("legs", item(26386));
+		eq.add("neck", item(19553));
+		eq.add("ring", item(28307));
+		eq.add("shield", item(22322));
+		eq.add("weapon", item(26219));
+		l.add("equipment", eq);
+
+		JsonObject skills = new JsonObject();
+		skills.addProperty("atk", 99);
+		skills.addProperty("def", 99);
+		skills.addProperty("hp", 99);
+		skills.addProperty("magic", 94);
+		skills.addProperty("mining", 85);
+		skills.addProperty("prayer", 77);
+		skills.addProperty("ranged", 99);
+		skills.addProperty("str", 99);
+		l.add("skills", skills);
+
+		JsonObject buffs = new JsonObject();
+		buffs.addProperty("inWilderness", false);
+		buffs.addProperty("kandarinDiary", true);
+		buffs.addProperty("onSlayerTask", true);
+		buffs.addProperty("chargeSpell", false);
+		l.add("buffs", buffs);
+
+		l.addProperty("name", "Zezima");
+		return l;
+	}
+
+	private static JsonObject item(int id)
+	{
+		JsonObject o = new JsonObject();
+		o.addProperty("id", id);
+		return o;
+	}
+}
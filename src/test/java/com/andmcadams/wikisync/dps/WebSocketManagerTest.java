@@ -0,0 +1,50 @@
+package com.andmcadams.wikisync.dps;
+
+import com.andmcadams.wikisync.dps.messages.MessageTypeAdapterFactory;
+import com.andmcadams.wikisync.dps.messages.Request;
+import com.andmcadams.wikisync.dps.messages.RequestType;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class WebSocketManagerTest
+{
+	private final Gson gson = new GsonBuilder()
+		.registerTypeAdapterFactory(new MessageTypeAdapterFactory())
+		.create();
+
+	@Test
+	public void testBatchSkipsNulls()
+	{
+		assertEquals(Collections.emptyList(), read("[null]"));
+		assertEquals(Arrays.asList(new Request(RequestType.GetPlayer, 0, null), new Request(RequestType.Unsubscribe, 3, null)),
+			read("[{\"_wsType\":\"GetPlayer\"},null,{\"_wsType\":\"Unsubscribe\",\"sequenceId\":3}]"));
+	}
+
+	@Test
+	public void testSingleNull()
+	{
+		assertEquals(Collections.emptyList(), read("null"));
+		assertEquals(Collections.singletonList(new Request(RequestType.Subscribe, 1, null)),
+			read("{\"_wsType\":\"Subscribe\",\"sequenceId\":1}"));
+	}
+
+	@Test
+	public void testIsBatch()
+	{
+		assertTrue(WebSocketManager.isBatch(" \n[{}]"));
+		assertFalse(WebSocketManager.isBatch("{}"));
+		assertFalse(WebSocketManager.isBatch("null"));
+	}
+
+	private List<Request> read(String message)
+	{
+		return WebSocketManager.readRequests(gson, message, WebSocketManager.isBatch(message));
+	}
+}
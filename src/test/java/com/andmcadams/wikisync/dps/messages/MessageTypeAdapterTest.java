@@ -0,0 +1,134 @@
+package com.andmcadams.wikisync.dps.messages;
+
+import com.andmcadams.wikisync.dps.messages.response.GetPlayer;
+import com.andmcadams.wikisync.dps.messages.response.LoadoutChanged;
+import com.andmcadams.wikisync.dps.messages.response.UsernameChanged;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.util.EnumSet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ * The hand-written adapters have to produce exactly what Gson's reflective adapter did before they existed, since the
+ * calculator parses whatever is sent to it.
+ */
+public class MessageTypeAdapterTest
+{
+	private final Gson reflective = new Gson();
+	private final Gson adapted = new GsonBuilder()
+		.registerTypeAdapterFactory(new MessageTypeAdapterFactory())
+		.create();
+
+	/**
+	 * GetPlayer as it was before its payload was serialized ahead of time.
+	 */
+	@SuppressWarnings("unused")
+	private static class ReflectiveGetPlayer
+	{
+		RequestType _wsType = RequestType.GetPlayer;
+		int sequenceId;
+		JsonObject payload;
+
+		ReflectiveGetPlayer(int sequenceId, JsonObject payload)
+		{
+			this.sequenceId = sequenceId;
+			this.payload = payload;
+		}
+	}
+
+	@Test
+	public void testUsernameChanged()
+	{
+		assertSameJson(new UsernameChanged("Zezima"), UsernameChanged.class);
+		assertSameJson(new UsernameChanged(null), UsernameChanged.class);
+	}
+
+	@Test
+	public void testLoadoutChanged()
+	{
+		assertSameJson(new LoadoutChanged(loadout()), LoadoutChanged.class);
+		assertSameJson(new LoadoutChanged(new JsonObject()), LoadoutChanged.class);
+		assertSameJson(new LoadoutChanged(null), LoadoutChanged.class);
+	}
+
+	@Test
+	public void testGetPlayer()
+	{
+		JsonObject shortlink = new JsonObject();
+		JsonArray loadouts = new JsonArray();
+		loadouts.add(loadout());
+		shortlink.add("loadouts", loadouts);
+		String json = reflective.toJson(new ReflectiveGetPlayer(12, shortlink));
+		assertEquals(json, adapted.toJson(new GetPlayer(12, reflective.toJson(shortlink))));
+		GetPlayer read = adapted.fromJson(json, GetPlayer.class);
+		assertEquals(12, read.getSequenceId());
+		assertEquals(reflective.toJson(shortlink), read.getPayload());
+
+		String loggedOut = reflective.toJson(new ReflectiveGetPlayer(3, null));
+		assertEquals(loggedOut, adapted.toJson(new GetPlayer(3, null)));
+		assertNull(adapted.fromJson(loggedOut, GetPlayer.class).getPayload());
+	}
+
+	@Test
+	public void testRequest()
+	{
+		assertSameJson(new Request(RequestType.GetPlayer, 7, null), Request.class);
+		assertSameJson(new Request(RequestType.Subscribe, 0, null), Request.class);
+		assertSameJson(new Request(null, 1, null), Request.class);
+	}
+
+	@Test
+	public void testRequestUnknownTypeAndFields()
+	{
+		String json = "{\"_wsType\":\"SomethingNew\",\"sequenceId\":4,\"extra\":[1,{\"a\":null}]}";
+		assertEquals(reflective.toJson(reflective.fromJson(json, Request.class)),
+			reflective.toJson(adapted.fromJson(json, Request.class)));
+	}
+
+	@Test
+	public void testRequestFields()
+	{
+		Request request = new Request(RequestType.GetPlayer, 2, EnumSet.of(LoadoutSection.SKILLS, LoadoutSection.BOOSTS));
+		String json = adapted.toJson(request);
+		assertEquals("{\"_wsType\":\"GetPlayer\",\"sequenceId\":2,\"fields\":[\"skills\",\"boosts\"]}", json);
+		assertEquals(request, adapted.fromJson(json, Request.class));
+
+		Request unknown = adapted.fromJson("{\"_wsType\":\"GetPlayer\",\"fields\":[\"prayers\",\"mood\"]}", Request.class);
+		assertEquals(EnumSet.of(LoadoutSection.PRAYERS), unknown.getFields());
+	}
+
+	@Test
+	public void testSubscribeFields()
+	{
+		Request request = adapted.fromJson("{\"_wsType\":\"Subscribe\",\"sequenceId\":5,\"fields\":[\"boosts\"]}", Request.class);
+		assertEquals(new Request(RequestType.Subscribe, 5, EnumSet.of(LoadoutSection.BOOSTS)), request);
+	}
+
+	private <T> void assertSameJson(T message, Class<T> type)
+	{
+		String json = reflective.toJson(message);
+		assertEquals(json, adapted.toJson(message));
+		assertEquals(json, reflective.toJson(adapted.fromJson(json, type)));
+	}
+
+	private static JsonObject loadout()
+	{
+		JsonObject equipment = new JsonObject();
+		JsonObject weapon = new JsonObject();
+		weapon.addProperty("id", 26219);
+		equipment.add("weapon", weapon);
+		equipment.add("shield", null);
+		JsonObject skills = new JsonObject();
+		skills.addProperty("atk", 99);
+		skills.addProperty("hp", 10);
+		JsonObject l = new JsonObject();
+		l.add("equipment", equipment);
+		l.add("skills", skills);
+		l.addProperty("name", "Zezima");
+		return l;
+	}
+}
@@ -1,24 +1,178 @@
+import gzip
+import json
 from wsgiref.simple_server import make_server
 
 import falcon
 
 
+# 4101 is the first prayer, toggle it to send data to the server
+MANIFEST = {
+    'varbits': [0, 100, 9657, 4101, 5000, 10000, 4104],
+    'varps': [1, 3, 5, 6, 7, 10],
+    'collections': [],
+    'version': 4,
+    # Remove binary-submit-v1 to have the plugin send JSON submissions instead
+    'features': ['binary-submit-v1'],
+}
+# Earlier manifests the stub can send deltas from
+MANIFEST_HISTORY = {
+    3: {
+        'varbits': [0, 100, 9657, 4101],
+        'varps': [1, 3, 5],
+        'collections': [],
+    },
+}
+
+
+def manifest_delta(since):
+    """Builds the delta from an earlier manifest version to the current one, or None if it is unknown"""
+    base = MANIFEST_HISTORY.get(since)
+    if base is None:
+        return None
+
+    def changes(key):
+        return {
+            'added': [i for i in MANIFEST[key] if i not in base[key]],
+            'removed': [i for i in base[key] if i not in MANIFEST[key]],
+        }
+    return {
+        'baseVersion': since,
+        'version': MANIFEST['version'],
+        'varbits': changes('varbits'),
+        'varps': changes('varps'),
+        'collections': [i for i in MANIFEST['collections'] if i not in base['collections']],
+        'features': MANIFEST.get('features', []),
+    }
+
+
+def read_body(req):
+    """Reads the request body, decoding it if the plugin gzip compressed it"""
+    raw = req.bounded_stream.read()
+    if req.get_header('Content-Encoding') == 'gzip':
+        body = gzip.decompress(raw)
+        print(f'gzip body: {len(raw)} bytes compressed, {len(body)} bytes decompressed')
+        return body
+    return raw
+
+
+def read_varint(data, pos):
+    """Reads an unsigned varint, returning it and the position after it"""
+    value = 0
+    shift = 0
+    while True:
+        b = data[pos]
+        pos += 1
+        value |= (b & 0x7F) << shift
+        if not b & 0x80:
+            return value & 0xFFFFFFFF, pos
+        shift += 7
+
+
+def read_signed_varint(data, pos):
+    value, pos = read_varint(data, pos)
+    return (value >> 1) ^ -(value & 1), pos
+
+
+def read_string(data, pos):
+    length, pos = read_varint(data, pos)
+    return data[pos:pos + length].decode('utf-8'), pos + length
+
+
+def read_slots(data, pos):
+    """Reads gap coded slots with their values into a dict of slot -> value"""
+    count, pos = read_varint(data, pos)
+    slots = {}
+    slot = -1
+    for _ in range(count):
+        gap, pos = read_varint(data, pos)
+        slot += gap + 1
+        slots[slot], pos = read_signed_varint(data, pos)
+    return slots, pos
+
+
+def decode_binary_submission(data):
+    """Decodes the binary-submit-v1 format written by BinarySubmissionEncoder, with slots mapped back to ids"""
+    if data[:3] != b'WS\x01':
+        raise ValueError('not a binary submission')
+    pos = 3
+    out = {}
+    out['manifestVersion'], pos = read_signed_varint(data, pos)
+    out['username'], pos = read_string(data, pos)
+    out['profile'], pos = read_string(data, pos)
+    varbits, pos = read_slots(data, pos)
+    varps, pos = read_slots(data, pos)
+    out['varb'] = {MANIFEST['varbits'][slot]: value for slot, value in varbits.items()}
+    out['varp'] = {MANIFEST['varps'][slot]: value for slot, value in varps.items()}
+    count, pos = read_varint(data, pos)
+    out['level'] = {}
+    for _ in range(count):
+        name, pos = read_string(data, pos)
+        out['level'][name], pos = read_signed_varint(data, pos)
+    flags = data[pos]
+    pos += 1
+    if flags & 1:
+        out['collectionLogItemCount'], pos = read_signed_varint(data, pos)
+    if flags & 2:
+        length, pos = read_varint(data, pos)
+        bits = int.from_bytes(data[pos:pos + length], 'little')
+        pos += length
+        out['collectionLogSlots'] = [i for i in range(length * 8) if bits >> i & 1]
+    if flags & 4:
+        encoding = data[pos]
+        pos += 1
+        count, pos = read_varint(data, pos)
+        slots = []
+        if encoding == 0:
+            slot = -1
+            for _ in range(count):
+                gap, pos = read_varint(data, pos)
+                slot += gap + 1
+                slots.append(slot)
+        else:
+            end = 0
+            for _ in range(count):
+                gap, pos = read_varint(data, pos)
+                length, pos = read_varint(data, pos)
+                slots.extend(range(end + gap, end + gap + length))
+                end += gap + length
+        out['newCollectionLogSlots'] = slots
+    return out
+
+
+def write_json(req, resp, media):
+    """Writes a JSON response, gzip compressing it if the client accepts that"""
+    body = json.dumps(media).encode('utf-8')
+    resp.content_type = falcon.MEDIA_JSON
+    if 'gzip' in (req.get_header('Accept-Encoding') or ''):
+        resp.set_header('Content-Encoding', 'gzip')
+        body = gzip.compress(body)
+    resp.data = body
+
+
 class TestResource:
 
     def on_get(self, req: falcon.request.Request, resp: falcon.response.Response):
         """Handles GET requests"""
-        # 4101 is the first prayer, toggle it to send data to the server
-        resp.media = {
-            'varbits': [0, 100, 9657, 4101, 5000, 10000, 4104],
-            'varps': [1, 3, 5, 6, 7, 10],
-            'collections': [],
-            'version': 4
-        }
+        etag = f'"{MANIFEST["version"]}"'
+        resp.set_header('ETag', etag)
+        if req.get_header('If-None-Match') == etag:
+            resp.status = falcon.HTTP_304
+            return resp
+        delta = manifest_delta(req.get_param_as_int('since'))
+        write_json(req, resp, delta if delta is not None else MANIFEST)
         resp.status = falcon.HTTP_200
         return resp
 
     def on_post(self, req, resp):
-        print(req.media)
+        body = read_body(req)
+        if req.content_type == 'application/octet-stream':
+            if 'binary-submit-v1' not in MANIFEST.get('features', []):
+                resp.status = falcon.HTTP_415
+                return
+            print(f'binary body: {len(body)} bytes')
+            print(decode_binary_submission(body))
+        else:
+            print(json.loads(body))
         resp.status = falcon.HTTP_200
 
     def on_get_check(self, req, resp):